@@ -1,16 +1,31 @@
 package net.internetmemory;
 
+import net.internetmemory.crawlquality.BatchHasher;
+import net.internetmemory.crawlquality.BinaryHashFile;
+import net.internetmemory.crawlquality.Checkpointer;
+import net.internetmemory.crawlquality.DigestCache;
+import net.internetmemory.crawlquality.FingerprintIndexFile;
 import net.internetmemory.crawlquality.SimHashGenerator;
 import net.internetmemory.crawlquality.URLInfo;
 import net.internetmemory.sections.Sections;
+import net.internetmemory.simhash.MinHash;
+import net.internetmemory.simhash.SimhashBenchmark;
+import net.internetmemory.simhash.SimhashFingerprint;
+import net.internetmemory.utils.WarcReaderWrapper;
 import org.apache.tinkerpop.gremlin.structure.Graph;
 import org.apache.tinkerpop.gremlin.structure.Vertex;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 
 
@@ -45,11 +60,167 @@ public class CrawlQualityMain {
                         g, Sections.filterHeadsUrlPrefix(g, Sections.graphSectionHeads(uis, g, indegrees, domain))));
     }
 
+    /**
+     * @return the simhash algorithm with the given name, its version (V1, V2...) or its key in the hash files
+     */
+    private static SimhashFingerprint.Algorithm simhashAlgorithm(String name) {
+        for (SimhashFingerprint.Algorithm a : SimhashFingerprint.Algorithm.values()) {
+            if (a.name().equalsIgnoreCase(name) || a.name().endsWith("_" + name.toUpperCase())
+                    || a.key().equalsIgnoreCase(name)) {
+                return a;
+            }
+        }
+        System.err.println("Unknown simhash algorithm " + name);
+        System.exit(2);
+        return null;
+    }
+
+    /**
+     * Parses the options of the calculations on the distances, from args[from]: -distance, the
+     * largest distance of near-duplicates, and -changed, the distance from which a page changed.
+     */
+    private static void distanceOptions(String[] args, int from) {
+        for (int i = from; i < args.length; i++) {
+            if (args[i].equals("-distance") && i + 1 < args.length) {
+                SimHashGenerator.nearDuplicateDistance = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-changed") && i + 1 < args.length) {
+                SimHashGenerator.changedDistance = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Wrong parameters.");
+                System.exit(2);
+            }
+        }
+    }
+
+    private static void openDigestCache(int size, String fn) throws IOException {
+        SimHashGenerator.digestCache = size > 0 ? new DigestCache(size) : null;
+        if (SimHashGenerator.digestCache != null && fn != null) {
+            SimHashGenerator.digestCache.load(fn);
+        }
+    }
+
+    private static void closeDigestCache(String fn) throws IOException {
+        if (SimHashGenerator.digestCache != null) {
+            SimHashGenerator.digestCache.print(System.err);
+            if (fn != null) {
+                SimHashGenerator.digestCache.save(fn);
+            }
+        }
+    }
+
     public static void main(String[] args) {
         try {
-            if (args[0].equals("-hash")) {
-                SimHashGenerator.hashAndPrint(args[1]);
-            } else if ((args[0].equals("-dists") || args[0].equals("-distances")) && args.length == 3) {
+            if (args[0].equals("-hash") && args.length >= 2) {
+                int nrThreads = 1;
+                String indexFile = null;
+                int cacheSize = DigestCache.DEFAULT_SIZE;
+                String cacheFile = null;
+                String outFile = null;
+                int checkpointSeconds = 60;
+                boolean resume = false;
+                for (int i = 2; i < args.length; i++) {
+                    if (args[i].equals("-threads") && i + 1 < args.length) {
+                        nrThreads = Integer.parseInt(args[++i]);
+                    } else if (args[i].equals("-index") && i + 1 < args.length) {
+                        indexFile = args[++i];
+                    } else if (args[i].equals("-out") && i + 1 < args.length) {
+                        outFile = args[++i];
+                    } else if (args[i].equals("-checkpoint") && i + 1 < args.length) {
+                        checkpointSeconds = Integer.parseInt(args[++i]);
+                    } else if (args[i].equals("-resume") || args[i].equals("--resume")) {
+                        resume = true;
+                    } else if (args[i].equals("-cache") && i + 1 < args.length) {
+                        cacheSize = Integer.parseInt(args[++i]);
+                    } else if (args[i].equals("-cacheFile") && i + 1 < args.length) {
+                        cacheFile = args[++i];
+                    } else if (args[i].equals("-inflaters") && i + 1 < args.length) {
+                        WarcReaderWrapper.INFLATE_THREADS = Integer.parseInt(args[++i]);
+                    } else if (args[i].equals("-simhash") && i + 1 < args.length) {
+                        SimHashGenerator.simhashAlgorithm = simhashAlgorithm(args[++i]);
+                    } else if (args[i].equals("-minhash") && i + 2 < args.length) {
+                        SimHashGenerator.minHash = new MinHash(Integer.parseInt(args[++i]), Integer.parseInt(args[++i]));
+                    } else if (args[i].equals("-structure")) {
+                        SimHashGenerator.structureSimhash = true;
+                    } else {
+                        System.err.println("Wrong parameters.");
+                        System.exit(2);
+                    }
+                }
+                if (resume && (outFile == null || indexFile != null)) {
+                    System.err.println("-resume needs -out and can not write an index.");
+                    System.exit(2);
+                }
+                openDigestCache(cacheSize, cacheFile);
+                if (outFile == null) {
+                    SimHashGenerator.hashAndPrint(args[1], nrThreads, indexFile);
+                } else {
+                    try (Checkpointer checkpointer = new Checkpointer(outFile, checkpointSeconds)) {
+                        PrintStream out = checkpointer.open(resume);
+                        SimHashGenerator.hash(args[1], nrThreads, indexFile, out, checkpointer).print(System.err);
+                    }
+                }
+                closeDigestCache(cacheFile);
+            } else if (args[0].equals("-benchSimhash") && (args.length == 2 || args.length == 3)) {
+                SimhashBenchmark.run(args[1], args.length == 3 ? Integer.parseInt(args[2]) : 5, System.out);
+            } else if (args[0].equals("-toBinary") && args.length == 3) {
+                BinaryHashFile.convert(args[1], args[2]);
+            } else if (args[0].equals("-rehash") && args.length == 4) {
+                SimHashGenerator.rehashAndPrint(args[1], args[2], args[3]);
+            } else if (args[0].equals("-hashBatch") && args.length >= 3) {
+                int nrThreads = Runtime.getRuntime().availableProcessors();
+                int nrFiles = 4;
+                int memoryMb = (int) (Runtime.getRuntime().maxMemory() / (4 * 1024 * 1024));
+                boolean perFile = false;
+                String indexDir = null;
+                int cacheSize = DigestCache.DEFAULT_SIZE;
+                String cacheFile = null;
+                for (int i = 3; i < args.length; i++) {
+                    if (args[i].equals("-threads") && i + 1 < args.length) {
+                        nrThreads = Integer.parseInt(args[++i]);
+                    } else if (args[i].equals("-inflaters") && i + 1 < args.length) {
+                        WarcReaderWrapper.INFLATE_THREADS = Integer.parseInt(args[++i]);
+                    } else if (args[i].equals("-files") && i + 1 < args.length) {
+                        nrFiles = Integer.parseInt(args[++i]);
+                    } else if (args[i].equals("-memory") && i + 1 < args.length) {
+                        memoryMb = Integer.parseInt(args[++i]);
+                    } else if (args[i].equals("-indexDir") && i + 1 < args.length) {
+                        indexDir = args[++i];
+                    } else if (args[i].equals("-cache") && i + 1 < args.length) {
+                        cacheSize = Integer.parseInt(args[++i]);
+                    } else if (args[i].equals("-cacheFile") && i + 1 < args.length) {
+                        cacheFile = args[++i];
+                    } else if (args[i].equals("-perFile")) {
+                        perFile = true;
+                    } else if (args[i].equals("-simhash") && i + 1 < args.length) {
+                        SimHashGenerator.simhashAlgorithm = simhashAlgorithm(args[++i]);
+                    } else if (args[i].equals("-minhash") && i + 2 < args.length) {
+                        SimHashGenerator.minHash = new MinHash(Integer.parseInt(args[++i]), Integer.parseInt(args[++i]));
+                    } else if (args[i].equals("-structure")) {
+                        SimHashGenerator.structureSimhash = true;
+                    } else {
+                        System.err.println("Wrong parameters.");
+                        System.exit(2);
+                    }
+                }
+                openDigestCache(cacheSize, cacheFile);
+                long start = System.currentTimeMillis();
+                List<String> warcs = BatchHasher.listWarcs(args[1]);
+                BatchHasher hasher = new BatchHasher(nrThreads, nrFiles, memoryMb, indexDir);
+                List<BatchHasher.FileResult> results = perFile
+                        ? hasher.hashPerFile(warcs, args[2])
+                        : hasher.hashMerged(warcs, args[2]);
+                BatchHasher.printSummary(results, System.currentTimeMillis() - start, System.err);
+                closeDigestCache(cacheFile);
+            } else if ((args[0].equals("-dists") || args[0].equals("-distances")) && args.length >= 3) {
+                int movedDistance = -1;
+                for (int i = 3; i < args.length; i++) {
+                    if (args[i].equals("-moved") && i + 1 < args.length) {
+                        movedDistance = Integer.parseInt(args[++i]);
+                    } else {
+                        System.err.println("Wrong parameters.");
+                        System.exit(2);
+                    }
+                }
                 Map<String, URLInfo> hashes1 = SimHashGenerator.loadHashes(args[1], false, false);
                 Map<String, URLInfo> hashes2 = SimHashGenerator.loadHashes(args[2], false, false);
                 hashes1 = SimHashGenerator.simhashFilter(hashes1);
@@ -57,15 +228,86 @@ public class CrawlQualityMain {
 
                 Map<String, Integer> dists = SimHashGenerator.getDistancesSameKey(hashes1, hashes2);
                 List<Map.Entry<String, Integer>> listSort = SimHashGenerator.sortRankAscByValue(dists);
-                SimHashGenerator.printDistances(listSort);
+                SimHashGenerator.printDistances(listSort, hashes1, hashes2);
+                if (movedDistance >= 0) {
+                    Map<String, URLInfo> h2 = hashes2;
+                    long nrUnmatched = hashes1.values().stream()
+                            .filter(u -> u.simhash != null && !h2.containsKey(u.url)).count();
+                    System.out.println();
+                    SimHashGenerator.printMoved(SimHashGenerator.getNearestMoved(hashes1, hashes2, movedDistance),
+                            nrUnmatched, movedDistance);
+                }
+            } else if (args[0].equals("-clusters") && args.length >= 2) {
+                int nrThreads = Runtime.getRuntime().availableProcessors();
+                String outFile = null;
+                for (int i = 2; i < args.length; i++) {
+                    if (args[i].equals("-threads") && i + 1 < args.length) {
+                        nrThreads = Integer.parseInt(args[++i]);
+                    } else if (args[i].equals("-out") && i + 1 < args.length) {
+                        outFile = args[++i];
+                    } else if (args[i].equals("-distance") && i + 1 < args.length) {
+                        SimHashGenerator.nearDuplicateDistance = Integer.parseInt(args[++i]);
+                    } else {
+                        System.err.println("Wrong parameters.");
+                        System.exit(2);
+                    }
+                }
+                Map<String, URLInfo> hashes = SimHashGenerator.loadHashes(args[1], true, true);
+                ForkJoinPool pool = new ForkJoinPool(nrThreads);
+                SortedMap<String, String> clusters = SimHashGenerator.nearDuplicateClusters(hashes.values(), pool);
+                pool.shutdown();
+                if (outFile != null) {
+                    try (PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(outFile)))) {
+                        SimHashGenerator.printClusters(clusters, out);
+                    }
+                } else {
+                    // System.out stays open for the other messages
+                    PrintStream out = new PrintStream(new BufferedOutputStream(System.out), false);
+                    SimHashGenerator.printClusters(clusters, out);
+                    out.flush();
+                }
+                System.err.println("pages:" + "\t" + clusters.size());
+                System.err.println("clusters:" + "\t" + new HashSet<>(clusters.values()).size());
+            } else if (args[0].equals("-indexAdd") && args.length >= 4) {
+                distanceOptions(args, 4);
+                Map<String, URLInfo> hashes = SimHashGenerator.loadHashes(args[2], true, true);
+                FingerprintIndexFile.append(args[1], args[3], hashes.values(), SimHashGenerator.nearDuplicateDistance);
+                FingerprintIndexFile index = FingerprintIndexFile.open(args[1]);
+                System.err.println("crawls:" + "\t" + index.getCrawls().size());
+                System.err.println("fingerprints:" + "\t" + index.size());
+            } else if (args[0].equals("-indexQuery") && args.length >= 3) {
+                FingerprintIndexFile index = FingerprintIndexFile.open(args[1]);
+                SimHashGenerator.nearDuplicateDistance = index.getMaxDistance();
+                distanceOptions(args, 3);
+                if (SimHashGenerator.nearDuplicateDistance > index.getMaxDistance()) {
+                    System.err.println("The index answers distances up to " + index.getMaxDistance() + ".");
+                    System.exit(2);
+                }
+                Map<String, URLInfo> hashes = SimHashGenerator.loadHashes(args[2], true, true);
+                List<URLInfo> pages = hashes.values().stream()
+                        .filter(u -> u.simhash != null)
+                        .sorted(Comparator.comparing(u -> u.url))
+                        .collect(Collectors.toList());
+                long found = 0;
+                for (URLInfo ui : pages) {
+                    FingerprintIndexFile.Match m = index.nearest(ui.simhash, SimHashGenerator.nearDuplicateDistance);
+                    if (m != null) {
+                        found++;
+                        System.out.println(ui.url + "\t" + m.crawl + "\t" + m.url + "\t" + m.distance);
+                    }
+                }
+                System.err.println("pages:" + "\t" + pages.size());
+                System.err.println("in the index:" + "\t" + found);
             } else if ((args[0].equals("-redun") || args[0].equals("-redundancy")) && args.length == 2) {
                 SimHashGenerator.printDistributions(SimHashGenerator.exactDuplicatesDistribution(
                         SimHashGenerator.loadHashes(args[1], false, false).values()));
-            } else if ((args[0].equals("-diver") || args[0].equals("-diversity")) && args.length == 2) {
+            } else if ((args[0].equals("-diver") || args[0].equals("-diversity")) && args.length >= 2) {
+                distanceOptions(args, 2);
                 Map<String, URLInfo> hashes =
                         SimHashGenerator.loadHashes(args[1], false, false);
                 SimHashGenerator.printDiversity(SimHashGenerator.diversity(hashes.values()));
-            } else if (args[0].equals("-size") && args.length == 3) {
+            } else if (args[0].equals("-size") && args.length >= 3) {
+                distanceOptions(args, 3);
                 Map<String, URLInfo> ma = SimHashGenerator.loadHashes(args[1], false, false);
                 long[] res = SimHashGenerator.uniqueCounts(ma.values());
                 long unique_non_html_a = res[1];
@@ -127,7 +369,8 @@ public class CrawlQualityMain {
                 }
             } else if ((args[0].equals("-secDiver") || args[0].equals("-sectionDiversity")
                         || args[0].equals("-secDiverBc") || args[0].equals("-sectionDiversityBreadcrumb"))
-                       && args.length == 3) {
+                       && args.length >= 3) {
+                distanceOptions(args, 3);
                 Map<String, Map<String, URLInfo>> sections;
                 Map<String, URLInfo> uis = SimHashGenerator.loadHashes(args[1], true, true);
                 if (args[0].equals("-secDiver") || args[0].equals("-sectionDiversity")) {
@@ -145,7 +388,8 @@ public class CrawlQualityMain {
                 }
             } else if ((args[0].equals("-secDists") || args[0].equals("-sectionsDistances")
                         || args[0].equals("-secDistsBc") || args[0].equals("-sectionsDistancesBc"))
-                       && args.length == 4) {
+                       && args.length >= 4) {
+                distanceOptions(args, 4);
                 Map<String, Map<String, URLInfo>> sectionsA;
                 Map<String, Map<String, URLInfo>> sectionsB;
                 Map<String, URLInfo> uis1 = SimHashGenerator.loadHashes(args[1], true, true);
@@ -157,7 +401,7 @@ public class CrawlQualityMain {
                     sectionsA = Sections.jsoupSections(uis1, args[3]);
                     sectionsB = Sections.jsoupSections(uis2, args[3]);
                 }
-                int threshold = 8;
+                int threshold = SimHashGenerator.changedDistance;
 
                 for (Map.Entry<String, Map<String, URLInfo>> s : sectionsA.entrySet()) {
                     if (sectionsB.containsKey(s.getKey())) {
@@ -0,0 +1,223 @@
+package net.internetmemory.crawlquality;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Hashes many WARC files in one JVM. Several files are read at the same time, their records
+ * are hashed by a shared pool of workers and the contents buffered by all the files are kept
+ * under a memory budget. The output is either one hash file per WARC or one merged hash file,
+ * where the files are catenated in input order.
+ */
+public class BatchHasher {
+    private final int nrThreads;
+    private final int nrFiles;
+    private final int memoryMb;
+    private final String indexDir;
+
+    /**
+     * @param nrThreads number of workers shared by all the files
+     * @param nrFiles number of files read at the same time
+     * @param memoryMb budget for the record contents buffered by all the files
+     */
+    public BatchHasher(int nrThreads, int nrFiles, int memoryMb) {
+        this(nrThreads, nrFiles, memoryMb, null);
+    }
+
+    /**
+     * @param indexDir directory of the offset indexes (indexDir/basename.idx), null for no index
+     */
+    public BatchHasher(int nrThreads, int nrFiles, int memoryMb, String indexDir) {
+        this.nrThreads = nrThreads;
+        this.nrFiles = nrFiles;
+        this.memoryMb = memoryMb;
+        this.indexDir = indexDir;
+    }
+
+    /**
+     * Result of one WARC file.
+     */
+    public static class FileResult {
+        public final String fileName;
+        public final HashStats stats;
+        public final long millis;
+        public final IOException error;
+
+        FileResult(String fileName, HashStats stats, long millis, IOException error) {
+            this.fileName = fileName;
+            this.stats = stats;
+            this.millis = millis;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Lists the WARC files of a directory (.warc and .warc.gz, recursively), matching a glob
+     * (e.g. "crawl/2017-*.warc.gz") or listed in a manifest (one path per line).
+     */
+    public static List<String> listWarcs(String input) throws IOException {
+        Path p = Paths.get(input);
+        if (Files.isDirectory(p)) {
+            try (Stream<Path> paths = Files.walk(p)) {
+                return paths.filter(Files::isRegularFile)
+                        .map(Path::toString)
+                        .filter(f -> f.endsWith(".warc") || f.endsWith(".warc.gz"))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+        } else if (input.contains("*") || input.contains("?") || input.contains("[") || input.contains("{")) {
+            int wildcard = input.length();
+            for (char c : new char[]{'*', '?', '[', '{'}) {
+                if (input.indexOf(c) >= 0) {
+                    wildcard = Math.min(wildcard, input.indexOf(c));
+                }
+            }
+            int slash = input.lastIndexOf('/', wildcard);
+            Path base = Paths.get(slash < 0 ? "." : input.substring(0, slash + 1));
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher(
+                    "glob:" + (slash < 0 ? input : input.substring(slash + 1)));
+            try (Stream<Path> paths = Files.walk(base)) {
+                return paths.filter(Files::isRegularFile)
+                        .filter(f -> matcher.matches(base.relativize(f)))
+                        .map(Path::toString)
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+        } else {
+            try (Stream<String> lines = Files.lines(p)) {
+                return lines.map(String::trim)
+                        .filter(l -> !l.isEmpty() && !l.startsWith("#"))
+                        .collect(Collectors.toList());
+            }
+        }
+    }
+
+    /**
+     * Hashes the files into one merged hash file. The partial output of a file which could not be
+     * hashed is left out, its error is in its result.
+     */
+    public List<FileResult> hashMerged(List<String> warcs, String output) throws IOException {
+        File parts = new File(output + ".parts");
+        if (!parts.isDirectory() && !parts.mkdirs()) {
+            throw new IOException("Could not create " + parts);
+        }
+        List<String> partFiles = new ArrayList<>();
+        for (int i = 0; i < warcs.size(); i++) {
+            partFiles.add(new File(parts, i + ".hash").getPath());
+        }
+        List<FileResult> results = hash(warcs, partFiles);
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+            for (int i = 0; i < partFiles.size(); i++) {
+                File f = new File(partFiles.get(i));
+                if (f.exists()) {
+                    if (results.get(i).error == null) {
+                        Files.copy(f.toPath(), out);
+                    }
+                    f.delete();
+                }
+            }
+        }
+        parts.delete();
+        return results;
+    }
+
+    /**
+     * Hashes each file into outputDir/basename.hash.
+     */
+    public List<FileResult> hashPerFile(List<String> warcs, String outputDir) throws IOException {
+        File dir = new File(outputDir);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        List<String> outputs = warcs.stream()
+                .map(w -> new File(dir, new File(w).getName() + ".hash").getPath())
+                .collect(Collectors.toList());
+        return hash(warcs, outputs);
+    }
+
+    private List<FileResult> hash(List<String> warcs, List<String> outputs) throws IOException {
+        if (indexDir != null && !new File(indexDir).isDirectory() && !new File(indexDir).mkdirs()) {
+            throw new IOException("Could not create " + indexDir);
+        }
+        ExecutorService workers = HashPipeline.newWorkers(nrThreads);
+        ExecutorService files = Executors.newFixedThreadPool(nrFiles);
+        int memoryKb = memoryMb * 1024;
+        Semaphore memory = new Semaphore(memoryKb);
+
+        List<Future<FileResult>> futures = new ArrayList<>();
+        for (int i = 0; i < warcs.size(); i++) {
+            String warc = warcs.get(i);
+            String output = outputs.get(i);
+            String index = indexDir != null ? new File(indexDir, new File(warc).getName() + ".idx").getPath() : null;
+            futures.add(files.submit(() -> {
+                long start = System.currentTimeMillis();
+                HashPipeline pipeline = new HashPipeline(workers, 4 * nrThreads, memory, memoryKb);
+                try (PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(output)))) {
+                    HashStats stats = pipeline.run(warc, out, index);
+                    return new FileResult(warc, stats, System.currentTimeMillis() - start, null);
+                } catch (IOException e) {
+                    System.err.println("Could not hash " + warc + ": " + e);
+                    return new FileResult(warc, new HashStats(), System.currentTimeMillis() - start, e);
+                }
+            }));
+        }
+
+        List<FileResult> results = new ArrayList<>();
+        try {
+            for (Future<FileResult> f : futures) {
+                results.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            files.shutdownNow();
+            workers.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Prints the counters and the throughput of each file and the totals.
+     */
+    public static void printSummary(List<FileResult> results, long totalMillis, PrintStream out) {
+        HashStats total = new HashStats();
+        int failed = 0;
+        for (FileResult r : results) {
+            total.add(r.stats);
+            double seconds = Math.max(r.millis, 1) / 1000.0;
+            out.println(r.fileName
+                    + "\t" + "records:" + r.stats.nrResources
+                    + "\t" + "html:" + r.stats.nrHtmlResources
+                    + "\t" + "bytes:" + r.stats.szResources
+                    + "\t" + "seconds:" + String.format("%.1f", seconds)
+                    + "\t" + "records/s:" + String.format("%.1f", r.stats.nrResources / seconds)
+                    + "\t" + "MB/s:" + String.format("%.2f", r.stats.szResources / seconds / (1024 * 1024))
+                    + (r.error != null ? "\t" + "error:" + r.error : ""));
+            if (r.error != null) {
+                failed++;
+            }
+        }
+        double seconds = Math.max(totalMillis, 1) / 1000.0;
+        out.println("number of files:" + "\t" + results.size());
+        out.println("number of failed files:" + "\t" + failed);
+        total.print(out);
+        out.println("records per second:" + "\t" + String.format("%.1f", total.nrResources / seconds));
+        out.println("MB per second:" + "\t" + String.format("%.2f", total.szResources / seconds / (1024 * 1024)));
+    }
+}
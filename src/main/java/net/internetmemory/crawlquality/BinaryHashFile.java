@@ -0,0 +1,482 @@
+package net.internetmemory.crawlquality;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.internetmemory.simhash.MinHash;
+import net.internetmemory.simhash.SimhashFingerprint;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Binary, columnar version of a hash file, read by memory-mapping it. The URLs (of the
+ * records, their redirections, sections and links), the MIME types, the statuses and the link
+ * types are stored once in dictionaries and referenced by their number, the MD5s are stored as
+ * 16 bytes, the simhashes as longs and the links as pairs of URL numbers.
+ *
+ * Layout (big-endian): the magic number, the number of records and of links, the 4
+ * dictionaries, then the columns of the records (URL, MIME type, status, location, section,
+ * flags, MD5, simhash, main text simhash) and of the links (source, target, type). A
+ * dictionary is its size, the offsets of its strings (longs, one more than the size) and the
+ * UTF-8 bytes of the strings. -1 stands for a missing string. The simhash columns hold the
+ * first word of the fingerprints: since CQHASH02, the file ends with the position of the other
+ * words of each record (int, -1 if there is none), the number of these words and the words,
+ * those of the simhash then those of the main text simhash of each record. Since CQHASH03, they
+ * are followed by the MinHashes: a dictionary of their keys, the key of each record (-1 if it
+ * has no MinHash), the position of its words, the number of words and the words. Since
+ * CQHASH04, the file ends with the column of the structural simhashes.
+ */
+public class BinaryHashFile {
+    private static final byte[] MAGIC = "CQHASH04".getBytes(StandardCharsets.US_ASCII);
+    // without the structural simhashes
+    private static final byte[] MAGIC_V3 = "CQHASH03".getBytes(StandardCharsets.US_ASCII);
+    // without the MinHashes
+    private static final byte[] MAGIC_V2 = "CQHASH02".getBytes(StandardCharsets.US_ASCII);
+    // without the words of the fingerprints of more than 64 bits
+    private static final byte[] MAGIC_V1 = "CQHASH01".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int HAS_MD5 = 1, HAS_SIMHASH = 2, HAS_SIMHASH_MAIN_TEXT = 4, HAS_STRUCTURE = 8;
+    // the 4 high bits of the flags are the ordinal of the algorithm of the simhashes
+    private static final int ALGORITHM_SHIFT = 4;
+
+    private final int nrRecords;
+    private final int nrLinks;
+    private final Dictionary urls;
+    private final Dictionary mimes;
+    private final Dictionary statuses;
+    private final Dictionary linkTypes;
+    private final IntBuffer url;
+    private final IntBuffer mime;
+    private final IntBuffer status;
+    private final IntBuffer location;
+    private final IntBuffer section;
+    private final ByteBuffer flags;
+    private final ByteBuffer md5;
+    private final LongBuffer simhash;
+    private final LongBuffer simhashMainText;
+    private final IntBuffer linkSource;
+    private final IntBuffer linkTarget;
+    private final IntBuffer linkType;
+    private final IntBuffer extraWordsStart;
+    private final LongBuffer extraWords;
+    private final Dictionary minHashKeys;
+    private final IntBuffer minHashKey;
+    private final IntBuffer minHashStart;
+    private final LongBuffer minHashWords;
+    private final LongBuffer structure;
+
+    /**
+     * Strings of a dictionary, decoded when they are read.
+     */
+    static class Dictionary {
+        final int size;
+        final LongBuffer offsets;
+        final ByteBuffer bytes;
+
+        Dictionary(FileChannel ch, long[] pos) throws IOException {
+            ByteBuffer b = map(ch, pos, 4);
+            size = b.getInt();
+            offsets = map(ch, pos, 8L * (size + 1)).asLongBuffer();
+            long length = offsets.get(size);
+            bytes = map(ch, pos, length);
+        }
+
+        String get(int id) {
+            if (id < 0) {
+                return null;
+            }
+            int from = (int) offsets.get(id);
+            int to = (int) offsets.get(id + 1);
+            byte[] b = new byte[to - from];
+            ByteBuffer dup = bytes.duplicate();
+            dup.position(from);
+            dup.get(b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+    }
+
+    private BinaryHashFile(String fn) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(fn), StandardOpenOption.READ)) {
+            long[] pos = {0};
+            ByteBuffer header = map(ch, pos, MAGIC.length + 8);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!isMagic(magic)) {
+                throw new IOException(fn + " is not a binary hash file");
+            }
+            nrRecords = header.getInt();
+            nrLinks = header.getInt();
+            urls = new Dictionary(ch, pos);
+            mimes = new Dictionary(ch, pos);
+            statuses = new Dictionary(ch, pos);
+            linkTypes = new Dictionary(ch, pos);
+            url = map(ch, pos, 4L * nrRecords).asIntBuffer();
+            mime = map(ch, pos, 4L * nrRecords).asIntBuffer();
+            status = map(ch, pos, 4L * nrRecords).asIntBuffer();
+            location = map(ch, pos, 4L * nrRecords).asIntBuffer();
+            section = map(ch, pos, 4L * nrRecords).asIntBuffer();
+            flags = map(ch, pos, nrRecords);
+            md5 = map(ch, pos, 16L * nrRecords);
+            simhash = map(ch, pos, 8L * nrRecords).asLongBuffer();
+            simhashMainText = map(ch, pos, 8L * nrRecords).asLongBuffer();
+            linkSource = map(ch, pos, 4L * nrLinks).asIntBuffer();
+            linkTarget = map(ch, pos, 4L * nrLinks).asIntBuffer();
+            linkType = map(ch, pos, 4L * nrLinks).asIntBuffer();
+            if (!Arrays.equals(magic, MAGIC_V1)) {
+                extraWordsStart = map(ch, pos, 4L * nrRecords).asIntBuffer();
+                int nrExtraWords = map(ch, pos, 4).getInt();
+                extraWords = map(ch, pos, 8L * nrExtraWords).asLongBuffer();
+            } else {
+                extraWordsStart = null;
+                extraWords = null;
+            }
+            if (Arrays.equals(magic, MAGIC) || Arrays.equals(magic, MAGIC_V3)) {
+                minHashKeys = new Dictionary(ch, pos);
+                minHashKey = map(ch, pos, 4L * nrRecords).asIntBuffer();
+                minHashStart = map(ch, pos, 4L * nrRecords).asIntBuffer();
+                int nrMinHashWords = map(ch, pos, 4).getInt();
+                minHashWords = map(ch, pos, 8L * nrMinHashWords).asLongBuffer();
+            } else {
+                minHashKeys = null;
+                minHashKey = null;
+                minHashStart = null;
+                minHashWords = null;
+            }
+            structure = Arrays.equals(magic, MAGIC) ? map(ch, pos, 8L * nrRecords).asLongBuffer() : null;
+        }
+    }
+
+    /**
+     * Maps the next length bytes of the file, at pos[0], and moves pos[0] after them.
+     */
+    static ByteBuffer map(FileChannel ch, long[] pos, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Column too large to be mapped: " + length + " bytes");
+        }
+        ByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, pos[0], length);
+        pos[0] += length;
+        return b;
+    }
+
+    /**
+     * Opens a binary hash file.
+     */
+    public static BinaryHashFile open(String fn) throws IOException {
+        return new BinaryHashFile(fn);
+    }
+
+    /**
+     * @return true if the file is a binary hash file, false if it is a text one
+     */
+    public static boolean isBinary(String fn) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(fn))) {
+            in.readFully(magic);
+        } catch (EOFException e) {
+            return false;
+        }
+        return isMagic(magic);
+    }
+
+    private static boolean isMagic(byte[] magic) {
+        return Arrays.equals(magic, MAGIC) || Arrays.equals(magic, MAGIC_V3) || Arrays.equals(magic, MAGIC_V2)
+                || Arrays.equals(magic, MAGIC_V1);
+    }
+
+    public int getNrRecords() {
+        return nrRecords;
+    }
+
+    public int getNrLinks() {
+        return nrLinks;
+    }
+
+    public String getLinkSource(int i) {
+        return urls.get(linkSource.get(i));
+    }
+
+    public String getLinkTarget(int i) {
+        return urls.get(linkTarget.get(i));
+    }
+
+    public String getLinkType(int i) {
+        return linkTypes.get(linkType.get(i));
+    }
+
+    /**
+     * Same as {@link SimHashGenerator#loadHashes(String, boolean, boolean)} on the text file.
+     */
+    public Map<String, URLInfo> loadHashes(boolean skipErrorStatus, boolean onlyHtml) {
+        Map<String, URLInfo> res = new HashMap<>();
+        for (int i = 0; i < nrRecords; i++) {
+            String u = urls.get(url.get(i));
+            int st = Integer.valueOf(statuses.get(status.get(i)));
+            String mt = mimes.get(mime.get(i));
+            if (skipErrorStatus && st >= 400) {
+                continue;
+            }
+            if (onlyHtml) {
+                String path;
+                try {
+                    path = new URI(u).getPath();
+                } catch (URISyntaxException e) {
+                    System.err.println("Could not parse URL " + u + " " + e);
+                    path = "";
+                }
+                if (!mt.startsWith("text/html")
+                        || path.toLowerCase().endsWith(".js")
+                        || path.toLowerCase().endsWith(".css")) {
+                    continue;
+                }
+            }
+            int f = flags.get(i);
+            String m = null;
+            if ((f & HAS_MD5) != 0) {
+                byte[] b = new byte[16];
+                ByteBuffer dup = md5.duplicate();
+                dup.position(16 * i);
+                dup.get(b);
+                // as written by SimHashGenerator.getMD5Hash, without leading zeros
+                m = new BigInteger(1, b).toString(16);
+            }
+            SimhashFingerprint.Algorithm algorithm = SimhashFingerprint.Algorithm.values()[(f & 0xff) >>> ALGORITHM_SHIFT];
+            int words = algorithm.words();
+            SimhashFingerprint sh = (f & HAS_SIMHASH) != 0 ? new SimhashFingerprint(
+                    algorithm, words(simhash.get(i), i, 0, words)) : null;
+            SimhashFingerprint shb = (f & HAS_SIMHASH_MAIN_TEXT) != 0 ? new SimhashFingerprint(
+                    algorithm, words(simhashMainText.get(i), i, words - 1, words)) : null;
+            URLInfo ui = new URLInfo(u, st, mt, urls.get(location.get(i)), m, sh, shb, urls.get(section.get(i)));
+            ui.minhash = minhash(i);
+            if ((f & HAS_STRUCTURE) != 0) {
+                ui.structure = new SimhashFingerprint(SimhashFingerprint.Structure.STRUCTURE_TAG_PATH_V1,
+                        new long[]{structure.get(i)});
+            }
+            res.put(u, ui);
+        }
+        return res;
+    }
+
+    /**
+     * Strings numbered in the order they are added.
+     */
+    static class DictionaryBuilder {
+        final Object2IntOpenHashMap<String> ids = new Object2IntOpenHashMap<>();
+        final List<String> strings = new ArrayList<>();
+
+        DictionaryBuilder() {
+            ids.defaultReturnValue(-1);
+        }
+
+        int id(String s) {
+            if (s == null) {
+                return -1;
+            }
+            int id = ids.getInt(s);
+            if (id < 0) {
+                id = strings.size();
+                ids.put(s, id);
+                strings.add(s);
+            }
+            return id;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(strings.size());
+            List<byte[]> bytes = strings.stream()
+                    .map(s -> s.getBytes(StandardCharsets.UTF_8))
+                    .collect(Collectors.toList());
+            long offset = 0;
+            out.writeLong(offset);
+            for (byte[] b : bytes) {
+                offset += b.length;
+                out.writeLong(offset);
+            }
+            for (byte[] b : bytes) {
+                out.write(b);
+            }
+        }
+    }
+
+    /**
+     * @return the words of a fingerprint of record i, its first word and the others read at skip
+     * words after the position of the other words of the record
+     */
+    private long[] words(long first, int i, int skip, int words) {
+        long[] res = new long[words];
+        res[0] = first;
+        for (int w = 1; w < words; w++) {
+            res[w] = extraWords.get(extraWordsStart.get(i) + skip + w - 1);
+        }
+        return res;
+    }
+
+    /**
+     * @return the MinHash of record i, or null
+     */
+    private MinHash.Signature minhash(int i) {
+        if (minHashKey == null || minHashKey.get(i) < 0) {
+            return null;
+        }
+        MinHash mh = MinHash.forKey(minHashKeys.get(minHashKey.get(i)));
+        long[] res = new long[mh.words()];
+        for (int w = 0; w < res.length; w++) {
+            res[w] = minHashWords.get(minHashStart.get(i) + w);
+        }
+        return new MinHash.Signature(mh, res);
+    }
+
+    /**
+     * Converts a text hash file (or several catenated ones) to a binary one.
+     */
+    public static void convert(String textFn, String binaryFn) throws IOException {
+        DictionaryBuilder urls = new DictionaryBuilder();
+        DictionaryBuilder mimes = new DictionaryBuilder();
+        DictionaryBuilder statuses = new DictionaryBuilder();
+        DictionaryBuilder linkTypes = new DictionaryBuilder();
+        IntArrayList url = new IntArrayList();
+        IntArrayList mime = new IntArrayList();
+        IntArrayList status = new IntArrayList();
+        IntArrayList location = new IntArrayList();
+        IntArrayList section = new IntArrayList();
+        ByteArrayOutputStream flags = new ByteArrayOutputStream();
+        ByteArrayOutputStream md5 = new ByteArrayOutputStream();
+        LongArrayList simhash = new LongArrayList();
+        LongArrayList simhashMainText = new LongArrayList();
+        IntArrayList linkSource = new IntArrayList();
+        IntArrayList linkTarget = new IntArrayList();
+        IntArrayList linkType = new IntArrayList();
+        IntArrayList extraWordsStart = new IntArrayList();
+        LongArrayList extraWords = new LongArrayList();
+        DictionaryBuilder minHashKeys = new DictionaryBuilder();
+        IntArrayList minHashKey = new IntArrayList();
+        IntArrayList minHashStart = new IntArrayList();
+        LongArrayList minHashWords = new LongArrayList();
+        LongArrayList structure = new LongArrayList();
+
+        try (BufferedReader br = new BufferedReader(new FileReader(textFn))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                // same parsing as Sections.webGraph and SimHashGenerator.loadHashes
+                String[] link = line.split(" ");
+                if (link.length > 2 && link[1].equals("->")) {
+                    linkSource.add(urls.id(link[0]));
+                    linkTarget.add(urls.id(link[2]));
+                    linkType.add(linkTypes.id(link.length > 3 ? link[3] : "-"));
+                    continue;
+                }
+                String[] words = line.split("\t");
+                if (words.length < 2 || words[1].equals("->")) {
+                    continue;
+                }
+                Map<String, String> kvs =
+                        Arrays.stream(Arrays.copyOfRange(words, 2, words.length))
+                                .collect(Collectors.toMap(
+                                        kv -> kv.split(":", 2)[0],
+                                        kv -> kv.split(":", 2)[1]));
+                url.add(urls.id(words[0]));
+                mime.add(mimes.id(kvs.get("tika_mime_t")));
+                status.add(statuses.id(kvs.get("status")));
+                location.add(urls.id(kvs.get("location")));
+                String sec = kvs.get("section");
+                section.add(urls.id(sec == null || sec.equals("null") ? null : sec));
+                SimhashFingerprint sh = SimHashGenerator.optSimhash(kvs, false);
+                SimhashFingerprint shb = SimHashGenerator.optSimhash(kvs, true);
+                SimhashFingerprint.Algorithm algorithm = sh != null ? sh.getAlgorithm()
+                        : shb != null ? shb.getAlgorithm() : SimhashFingerprint.Algorithm.PLAIN_TEXT_SHINGLE3_V1;
+                SimhashFingerprint st = SimHashGenerator.optSimhash(
+                        SimhashFingerprint.Structure.STRUCTURE_TAG_PATH_V1.key(), kvs);
+                String m = kvs.get("md5");
+                flags.write((m != null ? HAS_MD5 : 0) | (sh != null ? HAS_SIMHASH : 0)
+                        | (shb != null ? HAS_SIMHASH_MAIN_TEXT : 0) | (st != null ? HAS_STRUCTURE : 0)
+                        | (algorithm.ordinal() << ALGORITHM_SHIFT));
+                md5.write(md5Bytes(m));
+                simhash.add(sh != null ? sh.simhash()[0] : 0);
+                simhashMainText.add(shb != null ? shb.simhash()[0] : 0);
+                if (algorithm.words() > 1) {
+                    extraWordsStart.add(extraWords.size());
+                    for (SimhashFingerprint fp : Arrays.asList(sh, shb)) {
+                        for (int w = 1; w < algorithm.words(); w++) {
+                            extraWords.add(fp != null ? fp.simhash()[w] : 0);
+                        }
+                    }
+                } else {
+                    extraWordsStart.add(-1);
+                }
+                structure.add(st != null ? st.simhash()[0] : 0);
+                MinHash.Signature mh = SimHashGenerator.optMinHash(kvs);
+                minHashKey.add(minHashKeys.id(mh != null ? mh.getMinHash().key() : null));
+                minHashStart.add(mh != null ? minHashWords.size() : -1);
+                if (mh != null) {
+                    minHashWords.addElements(minHashWords.size(), mh.words());
+                }
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(binaryFn)))) {
+            out.write(MAGIC);
+            out.writeInt(url.size());
+            out.writeInt(linkSource.size());
+            urls.write(out);
+            mimes.write(out);
+            statuses.write(out);
+            linkTypes.write(out);
+            for (IntArrayList column : Arrays.asList(url, mime, status, location, section)) {
+                writeInts(out, column);
+            }
+            flags.writeTo(out);
+            md5.writeTo(out);
+            writeLongs(out, simhash);
+            writeLongs(out, simhashMainText);
+            for (IntArrayList column : Arrays.asList(linkSource, linkTarget, linkType)) {
+                writeInts(out, column);
+            }
+            writeInts(out, extraWordsStart);
+            out.writeInt(extraWords.size());
+            writeLongs(out, extraWords);
+            minHashKeys.write(out);
+            writeInts(out, minHashKey);
+            writeInts(out, minHashStart);
+            out.writeInt(minHashWords.size());
+            writeLongs(out, minHashWords);
+            writeLongs(out, structure);
+        }
+    }
+
+    /**
+     * @return the 16 bytes of an MD5 written in hexadecimal, zeros if it is null
+     */
+    private static byte[] md5Bytes(String m) {
+        byte[] res = new byte[16];
+        if (m != null) {
+            byte[] b = new BigInteger(m, 16).toByteArray();
+            // toByteArray adds a sign byte or drops the leading zeros
+            int n = Math.min(b.length, 16);
+            System.arraycopy(b, b.length - n, res, 16 - n, n);
+        }
+        return res;
+    }
+
+    private static void writeInts(DataOutputStream out, IntArrayList column) throws IOException {
+        for (int i = 0; i < column.size(); i++) {
+            out.writeInt(column.getInt(i));
+        }
+    }
+
+    private static void writeLongs(DataOutputStream out, LongArrayList column) throws IOException {
+        for (int i = 0; i < column.size(); i++) {
+            out.writeLong(column.getLong(i));
+        }
+    }
+}
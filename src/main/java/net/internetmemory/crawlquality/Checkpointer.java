@@ -0,0 +1,133 @@
+package net.internetmemory.crawlquality;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Checkpoints of a -hash run writing to a file, so a run which died can be resumed. A
+ * checkpoint (output.ckpt) holds the offset in the WARC of the next record to hash, the size of
+ * the hash file written so far and the counters. It is written at most every interval, once
+ * the hash file is flushed to the disk. The payload cache is saved with it (output.cache.ckpt)
+ * so the revisits after the checkpoint find their originals.
+ */
+public class Checkpointer implements Closeable {
+    private final String output;
+    private final String checkpointFile;
+    private final String cacheFile;
+    private final long intervalMillis;
+
+    private FileOutputStream fos;
+    private PrintStream out;
+    private long startOffset = 0;
+    private final HashStats stats = new HashStats();
+    private long lastCheckpoint;
+
+    /**
+     * @param output the hash file
+     * @param intervalSeconds minimum time between two checkpoints
+     */
+    public Checkpointer(String output, int intervalSeconds) {
+        this.output = output;
+        this.checkpointFile = output + ".ckpt";
+        this.cacheFile = output + ".cache.ckpt";
+        this.intervalMillis = intervalSeconds * 1000L;
+    }
+
+    /**
+     * Opens the hash file. When resuming from a checkpoint, the lines written after the
+     * checkpoint are removed and the new lines are appended, otherwise the file is truncated.
+     *
+     * @param resume true to resume from the last checkpoint, if there is one
+     * @return the stream for the hash lines
+     */
+    public PrintStream open(boolean resume) throws IOException {
+        long position = 0;
+        if (resume && new File(checkpointFile).exists()) {
+            Properties p = new Properties();
+            try (InputStream in = new FileInputStream(checkpointFile)) {
+                p.load(in);
+            }
+            startOffset = Long.parseLong(p.getProperty("offset"));
+            position = Long.parseLong(p.getProperty("output_position"));
+            stats.nrResources = Integer.parseInt(p.getProperty("nr_resources"));
+            stats.nrHtmlResources = Integer.parseInt(p.getProperty("nr_html_resources"));
+            stats.szResources = Long.parseLong(p.getProperty("sz_resources"));
+            stats.szHtmlResources = Long.parseLong(p.getProperty("sz_html_resources"));
+            if (SimHashGenerator.digestCache != null && new File(cacheFile).exists()) {
+                SimHashGenerator.digestCache.load(cacheFile);
+            }
+            System.err.println("Resuming at offset " + startOffset + " of the WARC, "
+                    + position + " of " + output);
+        }
+        fos = new FileOutputStream(output, position > 0);
+        fos.getChannel().truncate(position);
+        fos.getChannel().position(position);
+        out = new PrintStream(new BufferedOutputStream(fos));
+        lastCheckpoint = System.currentTimeMillis();
+        return out;
+    }
+
+    /**
+     * @return the offset in the WARC of the first record to hash
+     */
+    public long getStartOffset() {
+        return startOffset;
+    }
+
+    /**
+     * @return the counters of the records hashed before the checkpoint
+     */
+    public HashStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Writes a checkpoint if the interval has elapsed since the last one. It must be called
+     * when the lines of all the records before nextOffset, and only them, have been written.
+     *
+     * @param nextOffset offset in the WARC of the next record to hash
+     * @param stats counters of the records before nextOffset
+     * @param force true to write the checkpoint anyway, e.g. at the end of the WARC
+     */
+    public void checkpoint(long nextOffset, HashStats stats, boolean force) throws IOException {
+        long now = System.currentTimeMillis();
+        if (!force && now - lastCheckpoint < intervalMillis) {
+            return;
+        }
+        lastCheckpoint = now;
+        out.flush();
+        if (out.checkError()) {
+            throw new IOException("Could not write " + output);
+        }
+        fos.getChannel().force(false);
+        if (SimHashGenerator.digestCache != null) {
+            SimHashGenerator.digestCache.save(cacheFile + ".tmp");
+            Files.move(Paths.get(cacheFile + ".tmp"), Paths.get(cacheFile),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        Properties p = new Properties();
+        p.setProperty("offset", Long.toString(nextOffset));
+        p.setProperty("output_position", Long.toString(fos.getChannel().position()));
+        p.setProperty("nr_resources", Integer.toString(stats.nrResources));
+        p.setProperty("nr_html_resources", Integer.toString(stats.nrHtmlResources));
+        p.setProperty("sz_resources", Long.toString(stats.szResources));
+        p.setProperty("sz_html_resources", Long.toString(stats.szHtmlResources));
+        try (FileOutputStream ckpt = new FileOutputStream(checkpointFile + ".tmp")) {
+            p.store(ckpt, "-hash checkpoint");
+            ckpt.getChannel().force(false);
+        }
+        Files.move(Paths.get(checkpointFile + ".tmp"), Paths.get(checkpointFile),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() {
+        if (out != null) {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package net.internetmemory.crawlquality;
+
+import net.internetmemory.simhash.MinHash;
+import net.internetmemory.simhash.SimhashFingerprint;
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Results of the analyses of a payload, keyed by the WARC-Payload-Digest of the record or, if
+ * there is none, the MD5 of the payload, so the copies of a payload (error pages, soft 404s,
+ * mirrored assets...) are analysed once and revisit records can reuse the results of the
+ * record they refer to. The least recently used results are evicted when the cache is full.
+ * The cache can be saved to a file and loaded again to share it between the WARCs of a crawl.
+ */
+public class DigestCache {
+    public static int DEFAULT_SIZE = 100000;
+
+    /**
+     * Results of a payload. The section head URL depends on the URL of the page, so the
+     * breadcrumb links are kept, not resolved.
+     */
+    public static class Entry {
+        public final String md5;
+        public final String mime;
+        public final SimhashFingerprint simhash;
+        public final SimhashFingerprint simhashMainText;
+        public final String[] sectionHrefs;
+        public final MinHash.Signature minhash;
+        public final SimhashFingerprint structure;
+
+        public Entry(String md5, String mime, SimhashFingerprint simhash, SimhashFingerprint simhashMainText,
+                     String[] sectionHrefs) {
+            this(md5, mime, simhash, simhashMainText, sectionHrefs, null, null);
+        }
+
+        public Entry(String md5, String mime, SimhashFingerprint simhash, SimhashFingerprint simhashMainText,
+                     String[] sectionHrefs, MinHash.Signature minhash, SimhashFingerprint structure) {
+            this.md5 = md5;
+            this.mime = mime;
+            this.simhash = simhash;
+            this.simhashMainText = simhashMainText;
+            this.sectionHrefs = sectionHrefs;
+            this.minhash = minhash;
+            this.structure = structure;
+        }
+
+        /**
+         * @return the algorithm of the simhashes, null if there is none
+         */
+        public SimhashFingerprint.Algorithm getAlgorithm() {
+            if (simhash != null) {
+                return simhash.getAlgorithm();
+            }
+            return simhashMainText != null ? simhashMainText.getAlgorithm() : null;
+        }
+
+        /**
+         * @return true if there is no simhash or if they were calculated with the given algorithm
+         */
+        public boolean hasAlgorithm(SimhashFingerprint.Algorithm algorithm) {
+            return getAlgorithm() == null || getAlgorithm() == algorithm;
+        }
+
+        /**
+         * @return true if the payload is not a page or if its MinHash was calculated with the
+         * given parameters (none if minHash is null)
+         */
+        public boolean hasMinHash(MinHash minHash) {
+            if (!isPage()) {
+                return true;
+            }
+            return minHash == null ? minhash == null
+                    : minhash != null && minhash.getMinHash().key().equals(minHash.key());
+        }
+
+        /**
+         * @return true if the payload is not a page or if it has a structural simhash exactly when asked
+         */
+        public boolean hasStructure(boolean withStructure) {
+            return !isPage() || (structure != null) == withStructure;
+        }
+
+        private boolean isPage() {
+            return mime != null && mime.startsWith("text/html");
+        }
+    }
+
+    private final int maxSize;
+    private final LinkedHashMap<String, Entry> entries;
+    // WARC-Record-ID of the responses -> key of their payload, for the revisits
+    private final LinkedHashMap<String, String> recordIds;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param maxSize maximum number of payloads
+     */
+    public DigestCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<String, DigestCache.Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DigestCache.Entry> eldest) {
+                return size() > DigestCache.this.maxSize;
+            }
+        };
+        this.recordIds = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > DigestCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return the results of the payload with the given digest or MD5, or null
+     */
+    public synchronized Entry get(String key) {
+        Entry e = entries.get(key);
+        if (e != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return e;
+    }
+
+    public synchronized void put(String key, Entry e) {
+        entries.put(key, e);
+    }
+
+    /**
+     * Remembers the key of the payload of a record, for the revisits referring to it.
+     */
+    public synchronized void putRecordId(String recordId, String key) {
+        if (recordId != null) {
+            recordIds.put(recordId, key);
+        }
+    }
+
+    /**
+     * Results of the payload of a revisit, counted as one hit or one miss.
+     *
+     * @param digest the payload digest of the revisit, or null
+     * @param refersTo the WARC-Record-ID of the revisited record, or null, looked up if the
+     *                 digest is not cached
+     * @return the results, or null
+     */
+    public synchronized Entry getRevisited(String digest, String refersTo) {
+        Entry e = digest != null ? entries.get(digest) : null;
+        if (e == null && refersTo != null) {
+            String key = recordIds.get(refersTo);
+            e = key != null ? entries.get(key) : null;
+        }
+        if (e != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return e;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void print(PrintStream out) {
+        out.println("payload cache hits:" + "\t" + hits);
+        out.println("payload cache misses:" + "\t" + misses);
+        out.println("payload cache size:" + "\t" + entries.size());
+    }
+
+    /**
+     * Loads the entries saved in a file, if it exists, least recently used first.
+     */
+    public synchronized void load(String fn) throws IOException {
+        if (!new File(fn).exists()) {
+            return;
+        }
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(fn), "UTF-8"))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length < 6) {
+                    continue;
+                }
+                // the optional fingerprints, with their key, are before the section flag
+                int sectionField = 5;
+                MinHash.Signature minhash = null;
+                SimhashFingerprint structure = null;
+                while (sectionField < fields.length
+                        && !fields[sectionField].equals("0") && !fields[sectionField].equals("1")) {
+                    String f = fields[sectionField++];
+                    if (f.startsWith("minhash_")) {
+                        minhash = minhash(f);
+                    } else if (!f.equals("null")) {
+                        structure = simhash(f);
+                    }
+                }
+                if (sectionField == fields.length) {
+                    continue;
+                }
+                String[] hrefs = null;
+                if (fields[sectionField].equals("1")) {
+                    hrefs = new String[fields.length - sectionField - 1];
+                    System.arraycopy(fields, sectionField + 1, hrefs, 0, hrefs.length);
+                }
+                entries.put(fields[0], new Entry(fields[1], fields[2].equals("null") ? null : fields[2],
+                        simhash(fields[3]), simhash(fields[4]), hrefs, minhash, structure));
+            }
+        }
+    }
+
+    /**
+     * Saves the entries to a file, one per line: digest or MD5, MD5, MIME type, simhashes (with their algorithm
+     * if it is not V1), MinHash (with its key) and structural simhash if there are, whether a section
+     * was found and its links, separated by tabulations.
+     */
+    public synchronized void save(String fn) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fn), "UTF-8")))) {
+            for (Map.Entry<String, Entry> me : entries.entrySet()) {
+                Entry e = me.getValue();
+                if (!savable(e.mime) || (e.sectionHrefs != null && !savable(e.sectionHrefs))) {
+                    continue;
+                }
+                StringBuilder sb = new StringBuilder();
+                sb.append(me.getKey()).append('\t').append(e.md5).append('\t').append(e.mime)
+                        .append('\t').append(format(e.simhash))
+                        .append('\t').append(format(e.simhashMainText));
+                if (e.minhash != null) {
+                    sb.append('\t').append(e.minhash.getMinHash().key()).append(':').append(e.minhash);
+                }
+                if (e.structure != null) {
+                    sb.append('\t').append(format(e.structure));
+                }
+                sb.append('\t').append(e.sectionHrefs != null ? "1" : "0");
+                if (e.sectionHrefs != null) {
+                    for (String href : e.sectionHrefs) {
+                        sb.append('\t').append(href);
+                    }
+                }
+                out.println(sb);
+            }
+            if (out.checkError()) {
+                throw new IOException("Could not write " + fn);
+            }
+        }
+    }
+
+    /**
+     * @return true if the strings can be saved, i.e. they do not contain tabulations or new lines
+     */
+    private static boolean savable(String... strings) {
+        for (String s : strings) {
+            if (s != null && (s.indexOf('\t') >= 0 || s.indexOf('\n') >= 0 || s.indexOf('\r') >= 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A simhash is saved as its value, prefixed with its algorithm if it is not V1.
+     */
+    private static String format(SimhashFingerprint fp) {
+        if (fp == null || fp.getAlgorithm() == SimhashFingerprint.Algorithm.PLAIN_TEXT_SHINGLE3_V1) {
+            return String.valueOf(fp);
+        }
+        return fp.algorithm() + ":" + fp;
+    }
+
+    private static MinHash.Signature minhash(String s) {
+        if (s.equals("null")) {
+            return null;
+        }
+        int colon = s.indexOf(':');
+        return MinHash.Signature.parse(MinHash.forKey(s.substring(0, colon)), s.substring(colon + 1));
+    }
+
+    private static SimhashFingerprint simhash(String s) {
+        if (s.equals("null")) {
+            return null;
+        }
+        int colon = s.indexOf(':');
+        SimhashFingerprint.Type algorithm = colon < 0
+                ? SimhashFingerprint.Algorithm.PLAIN_TEXT_SHINGLE3_V1
+                : SimhashFingerprint.valueOf(s.substring(0, colon));
+        return SimhashFingerprint.parse(algorithm, s.substring(colon + 1));
+    }
+}
@@ -0,0 +1,232 @@
+package net.internetmemory.crawlquality;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.internetmemory.simhash.HammingIndex;
+import net.internetmemory.simhash.MappedHammingIndex;
+import net.internetmemory.simhash.SimhashFingerprint;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Index of the page simhashes of several crawls, read by memory-mapping it, to find the pages
+ * of a crawl whose content existed in a previous one without loading the previous hash files.
+ * Each crawl is a segment appended at the end of the file: its name, its URLs, the URL of each
+ * fingerprint and a {@link MappedHammingIndex} of the fingerprints. A query looks up the tables
+ * of each segment.
+ *
+ * Layout (big-endian, as {@link BinaryHashFile}): the magic number, the number of segments, the
+ * number of longs of the fingerprints, the largest distance of the queries and the key of the
+ * simhash algorithm (its length and its UTF-8 bytes), then the segments. A segment is the name
+ * of the crawl (length and bytes), its number of fingerprints, the dictionary of its URLs, the
+ * URL of each fingerprint (int), the fingerprints and the tables. The number of segments is
+ * written after the segment, so a file opened during an append holds the previous segments, and
+ * the bytes left by a failed append are truncated by the next one.
+ */
+public class FingerprintIndexFile {
+    private static final byte[] MAGIC = "CQFPIX01".getBytes(StandardCharsets.US_ASCII);
+    private static final int NR_SEGMENTS_OFFSET = MAGIC.length;
+
+    private final SimhashFingerprint.Algorithm algorithm;
+    private final int words;
+    private final int maxDistance;
+    private final List<Segment> segments = new ArrayList<>();
+    // end of the last segment
+    private final long end;
+
+    /**
+     * A page of a crawl of the index close to a query.
+     */
+    public static class Match {
+        public final String crawl;
+        public final String url;
+        public final int distance;
+
+        Match(String crawl, String url, int distance) {
+            this.crawl = crawl;
+            this.url = url;
+            this.distance = distance;
+        }
+    }
+
+    private static class Segment {
+        final String crawl;
+        final BinaryHashFile.Dictionary urls;
+        final IntBuffer url;
+        final MappedHammingIndex index;
+
+        Segment(FileChannel ch, long[] pos, int words, int maxDistance) throws IOException {
+            crawl = string(ch, pos);
+            int n = BinaryHashFile.map(ch, pos, 4).getInt();
+            urls = new BinaryHashFile.Dictionary(ch, pos);
+            url = BinaryHashFile.map(ch, pos, 4L * n).asIntBuffer();
+            LongBuffer fingerprints = BinaryHashFile.map(ch, pos, 8L * n * words).asLongBuffer();
+            LongBuffer[] tables = new LongBuffer[maxDistance + 1];
+            for (int b = 0; b < tables.length; b++) {
+                tables[b] = BinaryHashFile.map(ch, pos, 8L * n).asLongBuffer();
+            }
+            index = new MappedHammingIndex(fingerprints, tables, words, n);
+        }
+    }
+
+    private FingerprintIndexFile(String fn) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(fn), StandardOpenOption.READ)) {
+            long[] pos = {0};
+            ByteBuffer header = BinaryHashFile.map(ch, pos, MAGIC.length + 12);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(fn + " is not a fingerprint index");
+            }
+            int nrSegments = header.getInt();
+            words = header.getInt();
+            maxDistance = header.getInt();
+            algorithm = SimhashFingerprint.Algorithm.forKey(string(ch, pos));
+            for (int s = 0; s < nrSegments; s++) {
+                segments.add(new Segment(ch, pos, words, maxDistance));
+            }
+            end = pos[0];
+        }
+    }
+
+    /**
+     * Opens an index, read-only.
+     */
+    public static FingerprintIndexFile open(String fn) throws IOException {
+        return new FingerprintIndexFile(fn);
+    }
+
+    /**
+     * Appends the page simhashes of a crawl to an index, created if it does not exist.
+     *
+     * @param uis the resources, those without a page simhash are ignored
+     * @param maxDistance the largest distance of the queries, when the index is created
+     */
+    public static void append(String fn, String crawl, Collection<URLInfo> uis, int maxDistance) throws IOException {
+        List<URLInfo> list = uis.stream()
+                .filter(u -> u.simhash != null)
+                .sorted(Comparator.comparing(u -> u.url))
+                .collect(Collectors.toList());
+        if (list.isEmpty()) {
+            throw new IOException("No page simhash to index for " + crawl);
+        }
+        SimhashFingerprint.Algorithm algorithm = list.get(0).simhash.getAlgorithm();
+        if (!new File(fn).exists()) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fn)))) {
+                out.write(MAGIC);
+                out.writeInt(0);
+                out.writeInt(algorithm.words());
+                out.writeInt(maxDistance);
+                writeString(out, algorithm.key());
+            }
+        }
+        FingerprintIndexFile existing = open(fn);
+        if (existing.algorithm != algorithm) {
+            throw new IOException(fn + " indexes " + existing.algorithm.key() + " simhashes, not "
+                    + algorithm.key());
+        }
+        maxDistance = existing.maxDistance;
+        int nrSegments = existing.segments.size();
+        // the bytes of a segment whose append failed are not counted, they are overwritten
+        try (FileChannel ch = FileChannel.open(Paths.get(fn), StandardOpenOption.WRITE)) {
+            ch.truncate(existing.end);
+        }
+
+        HammingIndex index = HammingIndex.of(list.stream().map(u -> u.simhash).collect(Collectors.toList()),
+                maxDistance);
+        BinaryHashFile.DictionaryBuilder urls = new BinaryHashFile.DictionaryBuilder();
+        IntArrayList url = new IntArrayList();
+        for (URLInfo ui : list) {
+            url.add(urls.id(ui.url));
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fn, true)))) {
+            writeString(out, crawl);
+            out.writeInt(list.size());
+            urls.write(out);
+            for (int i = 0; i < url.size(); i++) {
+                out.writeInt(url.getInt(i));
+            }
+            MappedHammingIndex.write(index, out);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(fn, "rw")) {
+            raf.seek(NR_SEGMENTS_OFFSET);
+            raf.writeInt(nrSegments + 1);
+        }
+    }
+
+    public SimhashFingerprint.Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getMaxDistance() {
+        return maxDistance;
+    }
+
+    /**
+     * @return the crawls, in the order they were appended
+     */
+    public List<String> getCrawls() {
+        return segments.stream().map(s -> s.crawl).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the number of fingerprints of all the crawls
+     */
+    public long size() {
+        return segments.stream().mapToLong(s -> s.index.size()).sum();
+    }
+
+    /**
+     * Gives the pages of all the crawls at a distance of at most radius of the fingerprint.
+     *
+     * @param radius at most {@link #getMaxDistance()}
+     */
+    public void query(SimhashFingerprint fp, int radius, Consumer<Match> out) {
+        Preconditions.checkArgument(fp.getAlgorithm() == algorithm,
+                "Fingerprint of %s queried in an index of %s", fp.getAlgorithm(), algorithm);
+        long[] q = fp.simhash();
+        for (Segment s : segments) {
+            s.index.query(q, 0, radius, i ->
+                    out.accept(new Match(s.crawl, s.urls.get(s.url.get(i)), s.index.distance(q, 0, i))));
+        }
+    }
+
+    /**
+     * @return the closest page of all the crawls at a distance of at most radius, the first
+     * crawl and URL for equal distances, or null
+     */
+    public Match nearest(SimhashFingerprint fp, int radius) {
+        Match[] best = {null};
+        query(fp, radius, m -> {
+            if (best[0] == null || m.distance < best[0].distance
+                    || m.distance == best[0].distance && m.crawl.equals(best[0].crawl)
+                    && m.url.compareTo(best[0].url) < 0) {
+                best[0] = m;
+            }
+        });
+        return best[0];
+    }
+
+    private static String string(FileChannel ch, long[] pos) throws IOException {
+        int length = BinaryHashFile.map(ch, pos, 4).getInt();
+        byte[] b = new byte[length];
+        BinaryHashFile.map(ch, pos, length).get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+}
@@ -0,0 +1,302 @@
+package net.internetmemory.crawlquality;
+
+import net.internetmemory.utils.MimeDetection;
+import net.internetmemory.utils.WarcFileReader;
+import net.internetmemory.utils.WarcIndex;
+import net.internetmemory.utils.WarcReaderWrapper;
+import net.internetmemory.utils.WarcRecord;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Hashes a WARC file with one reader thread, a pool of workers and the calling thread as
+ * writer. The reader buffers the content of the records, the workers do the per-record work
+ * (MIME detection, parsing, simhashes) and the writer prints the results in the order of the
+ * WARC file, so the output is the same as {@link SimHashGenerator#hashAndPrint(String)}.
+ */
+public class HashPipeline {
+    private static final String NL = System.lineSeparator();
+
+    // MimeDetection is not thread-safe, each thread has its own, see mimeDetection()
+    private static final ThreadLocal<MimeDetection> mimeDetection = new ThreadLocal<>();
+
+    private static final Future<Hashed> END = CompletableFuture.completedFuture(null);
+
+    private final int nrThreads;
+    private final ExecutorService sharedWorkers;
+    private final int queueSize;
+    private final Semaphore memory;
+    private final int memoryKb;
+
+    /**
+     * @param nrThreads number of workers
+     */
+    public HashPipeline(int nrThreads) {
+        this.nrThreads = nrThreads;
+        this.sharedWorkers = null;
+        this.queueSize = 4 * nrThreads;
+        this.memory = null;
+        this.memoryKb = 0;
+    }
+
+    /**
+     * A pipeline using workers shared with other pipelines, e.g. to hash several files at
+     * the same time.
+     *
+     * @param workers workers, not shut down by the pipeline, e.g. {@link #newWorkers(int)}
+     * @param queueSize maximum number of records read but not written yet
+     * @param memory permits (KB) for the buffered contents, shared with other pipelines, may be null
+     * @param memoryKb total number of permits of memory
+     */
+    public HashPipeline(ExecutorService workers, int queueSize, Semaphore memory, int memoryKb) {
+        this.nrThreads = 0;
+        this.sharedWorkers = workers;
+        this.queueSize = queueSize;
+        this.memory = memory;
+        this.memoryKb = memoryKb;
+    }
+
+    /**
+     * @return a pool of workers whose MIME type detectors are destroyed when they end, after the
+     * pool is shut down
+     */
+    public static ExecutorService newWorkers(int nrThreads) {
+        return Executors.newFixedThreadPool(nrThreads, r -> new Thread(() -> {
+            try {
+                r.run();
+            } finally {
+                destroyMimeDetection();
+            }
+        }, "hash-worker"));
+    }
+
+    private static MimeDetection mimeDetection() {
+        MimeDetection detection = mimeDetection.get();
+        if (detection == null) {
+            detection = new MimeDetection();
+            mimeDetection.set(detection);
+        }
+        return detection;
+    }
+
+    private static void destroyMimeDetection() {
+        MimeDetection detection = mimeDetection.get();
+        if (detection != null) {
+            detection.destroy();
+            mimeDetection.remove();
+        }
+    }
+
+    /**
+     * Work done by the writer thread, in the order of the file: a revisit record reuses the
+     * results of the record it refers to, which must have been hashed before.
+     */
+    private static class Deferred extends FutureTask<Hashed> {
+        Deferred(Callable<Hashed> callable) {
+            super(callable);
+        }
+    }
+
+    /**
+     * Output of one record.
+     */
+    private static class Hashed {
+        final long offset;
+        final StringBuilder out = new StringBuilder();
+        final HashStats stats = new HashStats();
+
+        Hashed(long offset) {
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Hashes fileName and prints the hash lines to out.
+     *
+     * @return the counters of the run
+     */
+    public HashStats run(String fileName, PrintStream out) throws IOException {
+        return run(fileName, out, null);
+    }
+
+    /**
+     * Hashes fileName, prints the hash lines to out and writes the offset index of the records
+     * to indexFile, if not null. The index is written by the reader thread.
+     *
+     * @return the counters of the run
+     */
+    public HashStats run(String fileName, PrintStream out, String indexFile) throws IOException {
+        return run(fileName, out, indexFile, null);
+    }
+
+    /**
+     * Same as {@link #run(String, PrintStream, String)}, with checkpoints written by the writer,
+     * see {@link SimHashGenerator#hash(String, int, String, PrintStream, Checkpointer)}.
+     */
+    public HashStats run(String fileName, PrintStream out, String indexFile, Checkpointer checkpointer)
+            throws IOException {
+        WarcFileReader reader = new WarcFileReader(fileName, checkpointer != null ? checkpointer.getStartOffset() : 0);
+        WarcIndex.Writer index = indexFile != null ? new WarcIndex.Writer(indexFile) : null;
+        ExecutorService workers = sharedWorkers != null ? sharedWorkers : newWorkers(nrThreads);
+        BlockingQueue<Future<Hashed>> queue = new ArrayBlockingQueue<>(queueSize);
+        IOException[] readError = new IOException[1];
+
+        Thread readerThread = new Thread(() -> {
+            try {
+                org.jwat.warc.WarcRecord rec;
+                while ((rec = reader.getNextRecord()) != null) {
+                    long offset = reader.getOffset(rec);
+                    if (index != null) {
+                        index.add(rec, offset);
+                    }
+                    queue.put(submit(workers, rec, offset));
+                }
+                if (index != null) {
+                    index.close(reader.getFileSize());
+                }
+            } catch (IOException e) {
+                readError[0] = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                reader.close();
+                try {
+                    queue.put(END);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "warc-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+
+        HashStats stats = new HashStats();
+        if (checkpointer != null) {
+            stats.add(checkpointer.getStats());
+        }
+        try {
+            Future<Hashed> f;
+            while ((f = queue.take()) != END) {
+                if (f instanceof Deferred) {
+                    ((Deferred) f).run();
+                }
+                Hashed h = f.get();
+                if (checkpointer != null) {
+                    checkpointer.checkpoint(h.offset, stats, false);
+                }
+                out.print(h.out);
+                stats.add(h.stats);
+            }
+            readerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing " + fileName, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            if (sharedWorkers == null) {
+                workers.shutdownNow();
+            }
+            readerThread.interrupt();
+            // the detector of the revisits hashed by this thread
+            destroyMimeDetection();
+        }
+        if (readError[0] != null) {
+            throw readError[0];
+        }
+        if (checkpointer != null) {
+            checkpointer.checkpoint(reader.getFileSize(), stats, true);
+        }
+        return stats;
+    }
+
+    /**
+     * Parses the record and reads its content on the reader thread, the rest of the work is
+     * done by a worker.
+     */
+    private Future<Hashed> submit(ExecutorService workers, org.jwat.warc.WarcRecord rec, long offset)
+            throws InterruptedException {
+        WarcRecord warcRecord;
+        byte[] content;
+        try {
+            warcRecord = WarcReaderWrapper.parseWarcRecord(rec);
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(failed(e, new Hashed(offset)));
+        }
+        boolean needsContent = SimHashGenerator.needsContent(warcRecord);
+        if (warcRecord.getWarcRecordType().equals(WarcRecord.REVISIT_TYPE)) {
+            // the content of a revisit is an HTTP header, it is not counted in the memory budget
+            try {
+                byte[] header = needsContent ? WarcReaderWrapper.readContent(warcRecord) : new byte[0];
+                return new Deferred(() -> hash(warcRecord, header, offset));
+            } catch (Exception e) {
+                return CompletableFuture.completedFuture(failed(e, new Hashed(offset)));
+            }
+        }
+        int permits = needsContent ? permits(warcRecord.getContentLength()) : 0;
+        if (permits > 0) {
+            memory.acquire(permits);
+        }
+        try {
+            content = needsContent ? WarcReaderWrapper.readContent(warcRecord) : new byte[0];
+        } catch (Exception e) {
+            release(permits);
+            return CompletableFuture.completedFuture(failed(e, new Hashed(offset)));
+        }
+        return workers.submit(() -> {
+            try {
+                return hash(warcRecord, content, offset);
+            } finally {
+                release(permits);
+            }
+        });
+    }
+
+    /**
+     * Memory permits for a content of the given length, a content larger than the whole budget
+     * takes all the permits.
+     */
+    private int permits(long contentLength) {
+        if (memory == null) {
+            return 0;
+        }
+        return (int) Math.min(memoryKb, contentLength / 1024 + 1);
+    }
+
+    private void release(int permits) {
+        if (permits > 0) {
+            memory.release(permits);
+        }
+    }
+
+    private static Hashed hash(WarcRecord warcRecord, byte[] content, long offset) {
+        Hashed h = new Hashed(offset);
+        try {
+            SimHashGenerator.hashRecord(warcRecord, content, mimeDetection(), h.out, h.stats);
+        } catch (Exception e) {
+            failed(e, h);
+        }
+        return h;
+    }
+
+    private static Hashed failed(Exception e, Hashed h) {
+        System.err.println("Unexpected Exception: " + e);
+        e.printStackTrace();
+        h.out.append(NL);
+        return h;
+    }
+}
@@ -0,0 +1,27 @@
+package net.internetmemory.crawlquality;
+
+import java.io.PrintStream;
+
+/**
+ * Counters of a -hash run.
+ */
+public class HashStats {
+    public int nrResources = 0;
+    public int nrHtmlResources = 0;
+    public long szResources = 0;
+    public long szHtmlResources = 0;
+
+    public void add(HashStats other) {
+        nrResources += other.nrResources;
+        nrHtmlResources += other.nrHtmlResources;
+        szResources += other.szResources;
+        szHtmlResources += other.szHtmlResources;
+    }
+
+    public void print(PrintStream out) {
+        out.println("number of resources:" + "\t" + nrResources);
+        out.println("number of HTML resources:" + "\t" + nrHtmlResources);
+        out.println("all resources size:" + "\t" + szResources);
+        out.println("HTML resources size:" + "\t" + szHtmlResources);
+    }
+}
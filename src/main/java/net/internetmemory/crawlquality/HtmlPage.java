@@ -0,0 +1,77 @@
+package net.internetmemory.crawlquality;
+
+import net.internetmemory.utils.HtmlUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * An HTML page of a record, shared by the analyses of the record: the encoding is detected and
+ * the page is parsed once. The analyses reading the parsed document share it, those modifying
+ * it work on a copy, except {@link #cleanedDocument()} which cleans the parsed document in
+ * place and must be the last one.
+ */
+public class HtmlPage {
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+    private final String url;
+    private String encoding;
+    private org.jsoup.nodes.Document doc;
+    private boolean cleaned = false;
+
+    /**
+     * @param data byte array containing the page
+     * @param offset offset of the page in the array
+     * @param length length of the page
+     * @param url the URL of the page
+     */
+    public HtmlPage(byte[] data, int offset, int length, String url) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+        this.url = url;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getEncoding() {
+        if (encoding == null) {
+            encoding = HtmlUtils.detectEncoding(data, offset, length);
+        }
+        return encoding;
+    }
+
+    /**
+     * @return the parsed page, which must not be modified
+     */
+    public org.jsoup.nodes.Document document() throws IOException {
+        if (cleaned) {
+            throw new IllegalStateException("The document has been cleaned");
+        }
+        if (doc == null) {
+            doc = HtmlUtils.Jsoup.parseToJsoupDoc(
+                    new ByteArrayInputStream(data, offset, length), url, getEncoding());
+        }
+        return doc;
+    }
+
+    /**
+     * @return a copy of the parsed page, which can be modified
+     */
+    public org.jsoup.nodes.Document copyDocument() throws IOException {
+        return document().clone();
+    }
+
+    /**
+     * Returns the cleaned page, as {@link SimHashGenerator#document(byte[], int, int, String)}.
+     * The parsed page is cleaned in place, so it can not be used afterwards.
+     */
+    public org.w3c.dom.Document cleanedDocument() throws IOException {
+        org.jsoup.nodes.Document parsed = document();
+        cleaned = true;
+        return HtmlUtils.Jsoup.cleanAndParseStable(parsed, data, offset, length, url, getEncoding(), true);
+    }
+}
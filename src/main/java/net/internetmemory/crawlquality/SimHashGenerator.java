@@ -1,170 +1,434 @@
 package net.internetmemory.crawlquality;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
 import net.internetmemory.sections.ReadableContentExtractor;
 import net.internetmemory.sections.Sections;
 import net.internetmemory.utils.WarcRecord;
 import net.internetmemory.utils.Html;
+import net.internetmemory.simhash.HammingIndex;
+import net.internetmemory.simhash.MinHash;
+import net.internetmemory.simhash.MinHashIndex;
+import net.internetmemory.simhash.MultiIndexHash;
+import net.internetmemory.simhash.NearDuplicateClusters;
 import net.internetmemory.simhash.SimhashFingerprint;
+import net.internetmemory.simhash.SimhashKernel;
 import net.internetmemory.utils.HtmlUtils;
+import net.internetmemory.utils.HttpResponse;
+import net.internetmemory.utils.MimeDetection;
+import net.internetmemory.utils.WarcFileReader;
+import net.internetmemory.utils.WarcIndex;
+import net.internetmemory.utils.WarcRandomAccess;
 import net.internetmemory.utils.WarcReaderWrapper;
-import org.apache.commons.lang.ArrayUtils;
-import org.jwat.warc.WarcReader;
 
 import java.io.*;
 import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 
 public class SimHashGenerator {
+    private static final String NL = System.lineSeparator();
+
+    /**
+     * Algorithm of the simhashes written to the hash files.
+     */
+    public static SimhashFingerprint.Algorithm simhashAlgorithm = SimhashFingerprint.Algorithm.PLAIN_TEXT_SHINGLE3_V1;
+
+    /**
+     * MinHash of the pages written to the hash files, besides the simhashes, null for none.
+     */
+    public static MinHash minHash = null;
+
+    /**
+     * If true, the structural simhash of the pages (STRUCTURE_TAG_PATH_V1) is also written to
+     * the hash files, calculated in the traversal of the page simhash.
+     */
+    public static boolean structureSimhash = false;
+
+    /**
+     * Estimated Jaccard similarity from which two pages are near-duplicates by MinHash.
+     */
+    public static double minHashThreshold = 0.9;
+
+    /**
+     * Largest distance of two near-duplicate simhashes, for the diversity and the clusters.
+     */
+    public static int nearDuplicateDistance = 3;
+
+    /**
+     * Distance above which a page is counted as changed between two captures.
+     */
+    public static int changedDistance = 8;
+
+    /**
+     * Results of the payloads already analysed, shared by all the threads, null to analyse
+     * every payload.
+     */
+    public static DigestCache digestCache = new DigestCache(DigestCache.DEFAULT_SIZE);
+
     /**
      * generate Document by content saved in byte[] and url String.
      */
     public static org.w3c.dom.Document document(byte[] data, String url) throws Exception {
-        String encoding = HtmlUtils.detectEncoding(data);
-        return HtmlUtils.Jsoup.cleanAndParseStable(data, url, encoding, true);
+        return document(data, 0, data.length, url);
+    }
+
+    /**
+     * generate Document by content saved in a part of a byte[] and url String.
+     */
+    public static org.w3c.dom.Document document(byte[] data, int offset, int length, String url) throws Exception {
+        String encoding = HtmlUtils.detectEncoding(data, offset, length);
+        return HtmlUtils.Jsoup.cleanAndParseStable(data, offset, length, url, encoding, true);
     }
 
     /**
      * generate the md5 code for all resources and the simhash code for all HTML resources.
      */
     public static void hashAndPrint(String fileName) throws IOException {
-        WarcReader reader = WarcReaderWrapper.getReaderFromFile(fileName);
-        org.jwat.warc.WarcRecord rec;
-        int nr_resources = 0;
-        int nr_html_resources = 0;
-        long sz_resources = 0;
-        long sz_html_resources = 0;
-
-        while ((rec = reader.getNextRecord()) != null) {
-            try {
-                WarcRecord warcRecord = WarcReaderWrapper.parseWarcRecord(rec);
-                String url = warcRecord.getTargetURI();
-                InputStream contentInputStream = warcRecord.getContent();
-
-                long sz = warcRecord.getContentLength();
-                sz_resources += sz;
-                nr_resources++;
-
-                List<Byte> contentHeader = new ArrayList<>();
-                byte[] content = null;
-                byte[] verify = new byte[4];
-
-                if (warcRecord.getWarcRecordType().equals("metadata")
-                        && (url.startsWith("http://") || url.startsWith("https://"))) {
-                    new BufferedReader(new InputStreamReader(contentInputStream)).lines() // lines
-                            .map(l -> l.split(":", 2)) // key-value pairs
-                            .filter(kv -> kv.length == 2 && kv[0].trim().equals("outlink")) // outlinks
-                            .forEach(kv -> System.out.println(url + " -> " + kv[1].trim()));
-                } else if (WarcReaderWrapper.isARes(warcRecord)
-                        && (url.startsWith("http://") || url.startsWith("https://"))) {
-                    boolean found = false;
-                    contentInputStream.read(verify, 0, 4);
-
-                    for (Byte b : verify) {
-                        contentHeader.add(b);
-                    }
+        hashAndPrint(fileName, null);
+    }
 
-                    for (int i = 0; i <= warcRecord.getContentLength() - "\r\n\r\n".length(); i++) {
-                        if (verify[0] == 13 && verify[1] == 10 && verify[2] == 13 && verify[3] == 10) {
-                            found = true;
-                            content = new byte[(int) warcRecord.getContentLength() - i - 4];
-                            contentInputStream.read(content);
-                            break;
-                        } else {
-                            verify[0] = verify[1];
-                            verify[1] = verify[2];
-                            verify[2] = verify[3];
-                            verify[3] = (byte) contentInputStream.read();
-                            contentHeader.add(verify[3]);
-                        }
-                    }
-                    if (!found) {
-                        System.err.println("HTTP payload not found " + url);
-                        continue;
-                    }
+    /**
+     * Hashes the WARC file and writes the offset index of its records to indexFile, if not null
+     * (see {@link WarcIndex}).
+     */
+    public static void hashAndPrint(String fileName, String indexFile) throws IOException {
+        hash(fileName, 1, indexFile, System.out, null).print(System.err);
+    }
 
-                    Byte[] bytes = contentHeader.toArray(new Byte[contentHeader.size()]);
-                    String contentHeaderUTF8 = new String(ArrayUtils.toPrimitive(bytes), StandardCharsets.UTF_8);
-                    String status = null;
-                    String location = null;
-                    if (contentHeaderUTF8.split("\r\n")[0].startsWith("HTTP")) {
-                        status = contentHeaderUTF8.split("\r\n")[0].split(" ")[1];
-                        if (status.startsWith("3")) {
-                            location = Arrays.stream(contentHeaderUTF8.split("\r\n")) //lines
-                                    .map(v -> v.split(":", 2)) // split in 2
-                                    .filter(v -> v.length == 2 && v[0].startsWith("Location")) //find location
-                                    .map(v -> v[1].trim()).collect(Collectors.toList())
-                                    .iterator().next();
-                            location = Html.absoluteUrl(url, location);
-                        }
-                    } else {
-                        System.err.println("error HTTP Header");
-                    }
+    /**
+     * Hashes the WARC files with a pool of nrThreads workers, the output is the same as
+     * {@link #hashAndPrint(String)}.
+     */
+    public static void hashAndPrint(String fileName, int nrThreads) throws IOException {
+        hashAndPrint(fileName, nrThreads, null);
+    }
 
-                    String mime = "N/A";
-                    String hashCode = getMD5Hash(content);
-                    mime = WarcReaderWrapper.mimeDetection.detectMimeType(content);
-                    String date = warcRecord.getWarcDate();
-                    System.out.print(
-                            url
-                                    + "\t"
-                                    + date
-                                    + "\t"
-                                    + "tika_mime_t:" + mime
-                                    + "\t"
-                                    + "md5:" + hashCode
-                                    + "\t"
-                                    + "status:" + status
-                                    + "\t"
-                                    + "location:" + location);
-                    if (mime != null && mime.startsWith("text/html")) {
-                        nr_html_resources++;
-                        sz_html_resources += sz;
-
-                        // calculate 2 simhash codes.
-                        SimhashFingerprint simHashCodePage =
-                                    SimhashFingerprint.calculate(document(content, url));
-                        SimhashFingerprint simHashCodeMainText = null;
-                        try {
-                            simHashCodeMainText =
-                                    SimhashFingerprint.calculate(ReadableContentExtractor.text(content, url));
-                        } catch (Exception e) {
-                            System.err.println(e);
-                            e.printStackTrace();
-                        }
-                        String optSectionHeadUrl = Sections.extractSectionHeadUrl(content, url);
-                        System.out.print(
-                                "\t"
-                                        + "simhash_v1_3:" + simHashCodePage
-                                        + "\t"
-                                        + "simhash_v1_3_snacktory:" + simHashCodeMainText
-                                        + "\t"
-                                        + "section:" + optSectionHeadUrl
-                        );
+    public static void hashAndPrint(String fileName, int nrThreads, String indexFile) throws IOException {
+        hash(fileName, nrThreads, indexFile, System.out, null).print(System.err);
+    }
+
+    /**
+     * Hashes the WARC file with nrThreads workers (in the calling thread if 1) and prints the
+     * hash lines to out.
+     *
+     * @param indexFile file of the offset index, or null
+     * @param checkpointer checkpoints of the run, or null; if it resumes a run, the hashing
+     *                     starts at its offset and the counters include the records before it
+     * @return the counters of the run
+     */
+    public static HashStats hash(String fileName, int nrThreads, String indexFile, PrintStream out,
+                                 Checkpointer checkpointer) throws IOException {
+        if (nrThreads > 1) {
+            return new HashPipeline(nrThreads).run(fileName, out, indexFile, checkpointer);
+        }
+        HashStats stats = new HashStats();
+        if (checkpointer != null) {
+            stats.add(checkpointer.getStats());
+        }
+        long fileSize;
+        // the index is closed a second time by the try, which does nothing
+        try (WarcFileReader reader = new WarcFileReader(fileName,
+                checkpointer != null ? checkpointer.getStartOffset() : 0);
+             WarcIndex.Writer index = indexFile != null ? new WarcIndex.Writer(indexFile) : null) {
+            org.jwat.warc.WarcRecord rec;
+            while ((rec = reader.getNextRecord()) != null) {
+                long offset = reader.getOffset(rec);
+                if (checkpointer != null) {
+                    checkpointer.checkpoint(offset, stats, false);
+                }
+                if (index != null) {
+                    index.add(rec, offset);
+                }
+                StringBuilder sb = new StringBuilder();
+                try {
+                    WarcRecord warcRecord = WarcReaderWrapper.parseWarcRecord(rec);
+                    byte[] content = needsContent(warcRecord) ? WarcReaderWrapper.readContent(warcRecord) : new byte[0];
+                    hashRecord(warcRecord, content, WarcReaderWrapper.mimeDetection, sb, stats);
+                } catch (Exception e) {
+                    System.err.println("Unexpected Exception: " + e);
+                    e.printStackTrace();
+                    sb.append(NL);
+                }
+                out.print(sb);
+            }
+            fileSize = reader.getFileSize();
+            if (index != null) {
+                index.close(fileSize);
+            }
+        }
+        if (checkpointer != null) {
+            checkpointer.checkpoint(fileSize, stats, true);
+        }
+        return stats;
+    }
+
+    /**
+     * Hashes again the response records of the given URLs, read at their offsets in the WARC
+     * file, and prints their hash lines as {@link #hashAndPrint(String)} does.
+     *
+     * @param indexFile index of the WARC file, written while hashing it
+     * @param urlsFile the URLs, one per line
+     */
+    public static void rehashAndPrint(String fileName, String indexFile, String urlsFile) throws IOException {
+        HashStats stats = new HashStats();
+        try (WarcRandomAccess warc = new WarcRandomAccess(fileName, WarcIndex.load(indexFile));
+             BufferedReader br = new BufferedReader(new FileReader(urlsFile))) {
+            String url;
+            while ((url = br.readLine()) != null) {
+                url = url.trim();
+                if (url.isEmpty()) {
+                    continue;
+                }
+                WarcIndex.Entry e = warc.getIndex().getByUrl(url, WarcRecord.RESPONSE_TYPE);
+                if (e == null) {
+                    System.err.println("Not in the index: " + url);
+                    continue;
+                }
+                StringBuilder out = new StringBuilder();
+                try {
+                    WarcRecord warcRecord = warc.read(e);
+                    byte[] content = WarcReaderWrapper.readContent(warcRecord);
+                    hashRecord(warcRecord, content, WarcReaderWrapper.mimeDetection, out, stats);
+                } catch (Exception ex) {
+                    System.err.println("Unexpected Exception: " + ex);
+                    ex.printStackTrace();
+                    out.append(NL);
+                }
+                System.out.print(out);
+            }
+        }
+        stats.print(System.err);
+    }
+
+    /**
+     * Returns true if hashRecord reads the content of the record.
+     */
+    public static boolean needsContent(WarcRecord warcRecord) {
+        String url = warcRecord.getTargetURI();
+        return url != null && (url.startsWith("http://") || url.startsWith("https://"))
+                && (warcRecord.getWarcRecordType().equals("metadata") || WarcReaderWrapper.isARes(warcRecord)
+                    || warcRecord.getWarcRecordType().equals(WarcRecord.REVISIT_TYPE));
+    }
+
+    /**
+     * Appends the hash lines of one record to out and updates the counters.
+     *
+     * @param warcRecord the parsed record
+     * @param content the content of the record, HTTP header included
+     * @param mimeDetection the MIME type detector, not shared between threads
+     */
+    public static void hashRecord(WarcRecord warcRecord, byte[] content,
+                                  MimeDetection mimeDetection, StringBuilder out, HashStats stats)
+            throws Exception {
+        String url = warcRecord.getTargetURI();
+
+        long sz = warcRecord.getContentLength();
+        stats.szResources += sz;
+        stats.nrResources++;
+
+        if (warcRecord.getWarcRecordType().equals("metadata")
+                && (url.startsWith("http://") || url.startsWith("https://"))) {
+            new BufferedReader(new InputStreamReader(new ByteArrayInputStream(content))).lines() // lines
+                    .map(l -> l.split(":", 2)) // key-value pairs
+                    .filter(kv -> kv.length == 2 && kv[0].trim().equals("outlink")) // outlinks
+                    .forEach(kv -> out.append(url + " -> " + kv[1].trim()).append(NL));
+        } else if (WarcReaderWrapper.isARes(warcRecord)
+                && (url.startsWith("http://") || url.startsWith("https://"))) {
+            hashResponse(warcRecord, content, mimeDetection, out, stats);
+        } else if (warcRecord.getWarcRecordType().equals(WarcRecord.REVISIT_TYPE)
+                && (url.startsWith("http://") || url.startsWith("https://"))) {
+            hashRevisit(warcRecord, content, out, stats);
+        }
+    }
+
+    private static void hashResponse(WarcRecord warcRecord, byte[] content,
+                                     MimeDetection mimeDetection, StringBuilder out, HashStats stats)
+            throws Exception {
+        String url = warcRecord.getTargetURI();
+        long sz = warcRecord.getContentLength();
+        HttpResponse response = HttpResponse.parse(content);
+        if (response == null) {
+            System.err.println("HTTP payload not found " + url);
+            return;
+        }
+        // the payload is not copied, it is used in place in the record buffer
+        int offset = response.getPayloadOffset();
+        int length = response.getPayloadLength();
+        String[] statusLocation = statusAndLocation(response, url);
+
+        // the digest of the WARC identifies the payload without reading it, the MD5 is
+        // calculated only when the payload is not in the cache
+        String digest = warcRecord.getHeaderMetadataItem(WarcRecord.PAYLOAD_DIGEST_FIELD);
+        String hashCode = digest == null ? getMD5Hash(content, offset, length) : null;
+        String key = digest != null ? digest : hashCode;
+        DigestCache cache = digestCache;
+        DigestCache.Entry cached = cache != null ? usable(cache.get(key)) : null;
+        if (hashCode == null) {
+            hashCode = cached != null ? cached.md5 : getMD5Hash(content, offset, length);
+        }
+
+        String mime = "N/A";
+        mime = cached != null ? cached.mime : mimeDetection.detectMimeType(content, offset, length);
+        appendHashLine(out, url, warcRecord.getWarcDate(), mime, hashCode, statusLocation[0], statusLocation[1]);
+        DigestCache.Entry entry = cached;
+        if (mime != null && mime.startsWith("text/html")) {
+            stats.nrHtmlResources++;
+            stats.szHtmlResources += sz;
+
+            if (entry == null) {
+                // the page is parsed once, the cleaning for the page simhash modifies it so it is
+                // done last, the main text extractor modifies its own copy.
+                HtmlPage page = new HtmlPage(content, offset, length, url);
+                String[] sectionHrefs = Sections.sectionHeadHrefs(page.document());
+                SimhashFingerprint simHashCodeMainText = null;
+                // the weighted simhash does without the main text extraction
+                if (simhashAlgorithm.hasMainText()) {
+                    try {
+                        simHashCodeMainText =
+                                SimhashFingerprint.calculate(ReadableContentExtractor.text(page.copyDocument()),
+                                        simhashAlgorithm);
+                    } catch (Exception e) {
+                        System.err.println(e);
+                        e.printStackTrace();
                     }
-                    System.out.println();
                 }
-            } catch (Exception e) {
-                System.err.println("Unexpected Exception: " + e);
-                e.printStackTrace();
-                System.out.println();
+                // calculate 2 simhash codes.
+                org.w3c.dom.Document cleaned = page.cleanedDocument();
+                SimhashFingerprint simHashCodePage;
+                SimhashFingerprint structure = null;
+                if (structureSimhash) {
+                    SimhashFingerprint[] fps = SimhashFingerprint.calculateWithStructure(cleaned, simhashAlgorithm);
+                    simHashCodePage = fps[0];
+                    structure = fps[1];
+                } else {
+                    simHashCodePage = SimhashFingerprint.calculate(cleaned, simhashAlgorithm);
+                }
+                MinHash.Signature minhash = null;
+                if (minHash != null) {
+                    // the shingles of the V3 simhashes are those of the MinHash, still in the kernel
+                    minhash = simhashAlgorithm.keepsShingles()
+                            ? minHash.signature(SimhashKernel.get().shingles()) : minHash.signature(cleaned);
+                }
+                entry = new DigestCache.Entry(hashCode, mime, simHashCodePage, simHashCodeMainText, sectionHrefs,
+                        minhash, structure);
+            }
+            appendHtmlHashes(out, entry, url);
+        } else if (entry == null) {
+            entry = new DigestCache.Entry(hashCode, mime, null, null, null);
+        }
+        if (cache != null) {
+            if (cached == null) {
+                cache.put(key, entry);
             }
+            cache.putRecordId(warcRecord.getWarcRecordId(), key);
+        }
+        out.append(NL);
+    }
+
+    /**
+     * @return the cached entry, or null if it is null or has simhashes of another algorithm or
+     * other fingerprints than those calculated, e.g. from a cache file
+     */
+    private static DigestCache.Entry usable(DigestCache.Entry cached) {
+        if (cached != null && (!cached.hasAlgorithm(simhashAlgorithm) || !cached.hasMinHash(minHash)
+                || !cached.hasStructure(structureSimhash))) {
+            return null;
+        }
+        return cached;
+    }
+
+    /**
+     * A revisit record has no payload, the hashes of the payload are those of the record it
+     * refers to, found in the cache by the payload digest or the WARC-Refers-To record ID. The
+     * status and the location are those of the revisit.
+     */
+    private static void hashRevisit(WarcRecord warcRecord, byte[] content, StringBuilder out, HashStats stats)
+            throws Exception {
+        String url = warcRecord.getTargetURI();
+        DigestCache cache = digestCache;
+        String digest = warcRecord.getHeaderMetadataItem(WarcRecord.PAYLOAD_DIGEST_FIELD);
+        String refersTo = warcRecord.getRefersTo();
+        DigestCache.Entry entry = cache != null ? usable(cache.getRevisited(digest, refersTo)) : null;
+        if (entry == null) {
+            System.err.println("Revisited record not found " + url);
+            return;
         }
 
-        System.err.println("number of resources:" + "\t" + nr_resources);
-        System.err.println("number of HTML resources:" + "\t" + nr_html_resources);
-        System.err.println("all resources size:" + "\t" + sz_resources);
-        System.err.println("HTML resources size:" + "\t" + sz_html_resources);
+        HttpResponse response = HttpResponse.parse(content);
+        String[] statusLocation = response != null ? statusAndLocation(response, url) : new String[2];
+        appendHashLine(out, url, warcRecord.getWarcDate(), entry.mime, entry.md5, statusLocation[0], statusLocation[1]);
+        if (entry.mime != null && entry.mime.startsWith("text/html")) {
+            stats.nrHtmlResources++;
+            stats.szHtmlResources += warcRecord.getContentLength();
+            appendHtmlHashes(out, entry, url);
+        }
+        out.append(NL);
     }
 
     /**
-     * calculate the distances for the intersection urls in two captures.
+     * @return the status and the location (resolved) of the response
+     */
+    private static String[] statusAndLocation(HttpResponse response, String url) throws MalformedURLException {
+        String status = null;
+        String location = null;
+        if (response.hasStatusLine()) {
+            status = response.getStatus();
+            if (status != null && status.startsWith("3") && response.getLocation() != null) {
+                location = Html.absoluteUrl(url, response.getLocation());
+            }
+        } else {
+            System.err.println("error HTTP Header");
+        }
+        return new String[]{status, location};
+    }
+
+    private static void appendHashLine(StringBuilder out, String url, String date, String mime, String hashCode,
+                                       String status, String location) {
+        out.append(
+                url
+                        + "\t"
+                        + date
+                        + "\t"
+                        + "tika_mime_t:" + mime
+                        + "\t"
+                        + "md5:" + hashCode
+                        + "\t"
+                        + "status:" + status
+                        + "\t"
+                        + "location:" + location);
+    }
+
+    private static void appendHtmlHashes(StringBuilder out, DigestCache.Entry entry, String url) throws Exception {
+        String optSectionHeadUrl = Sections.sectionHeadUrl(entry.sectionHrefs, url);
+        // the keys tell the algorithm, a revisit may get the simhashes of another algorithm from a cache file
+        SimhashFingerprint.Algorithm algorithm = entry.getAlgorithm() != null ? entry.getAlgorithm() : simhashAlgorithm;
+        out.append(
+                "\t"
+                        + algorithm.key() + ":" + entry.simhash
+                        + "\t"
+                        + algorithm.mainTextKey() + ":" + entry.simhashMainText
+                        + "\t"
+                        + "section:" + optSectionHeadUrl
+        );
+        if (entry.structure != null) {
+            out.append("\t" + entry.structure.getType().key() + ":" + entry.structure);
+        }
+        if (entry.minhash != null) {
+            out.append("\t" + entry.minhash.getMinHash().key() + ":" + entry.minhash);
+        }
+    }
+
+    /**
+     * calculate the distances for the intersection urls in two captures, see
+     * {@link URLInfo#distance(URLInfo)}; the pages without a simhash of the same kind in both
+     * captures are left out.
      */
     public static Map<String, Integer> getDistancesSameKey(
             Map<String, URLInfo> m1, Map<String, URLInfo> m2) {
@@ -173,18 +437,91 @@ public class SimHashGenerator {
             if (m2.containsKey(record.getKey())) {
                 URLInfo ui1 = record.getValue();
                 URLInfo ui2 = m2.get(record.getKey());
-                res.put(record.getKey(), ui1.distance(ui2));
+                int d = ui1.distance(ui2);
+                if (d >= 0) {
+                    res.put(record.getKey(), d);
+                }
             }
         }
         return res;
     }
 
+    /**
+     * Nearest page of the second capture of each page of the first one whose URL is not in the
+     * second, e.g. moved or renamed, at a distance of at most maxDistance, among the pages of the
+     * second capture whose URL is not in the first, e.g. their new URLs. These page simhashes are
+     * indexed by a {@link MultiIndexHash}, so the pages are not compared pair by pair; the pages
+     * without a page simhash are ignored.
+     *
+     * @return the URL of the nearest page (the first URL for equal distances) and the distance,
+     * for each URL of m1 with a page at most at maxDistance
+     */
+    public static Map<String, Map.Entry<String, Integer>> getNearestMoved(
+            Map<String, URLInfo> m1, Map<String, URLInfo> m2, int maxDistance) {
+        Map<String, Map.Entry<String, Integer>> res = new HashMap<>();
+        List<URLInfo> targets = m2.values().stream()
+                .filter(u -> u.simhash != null && !m1.containsKey(u.url))
+                .sorted(Comparator.comparing(u -> u.url))
+                .collect(Collectors.toList());
+        if (targets.isEmpty()) {
+            return res;
+        }
+        MultiIndexHash index = MultiIndexHash.of(targets.stream().map(u -> u.simhash).collect(Collectors.toList()));
+        for (Map.Entry<String, URLInfo> record : m1.entrySet()) {
+            URLInfo ui = record.getValue();
+            if (m2.containsKey(record.getKey()) || ui.simhash == null) {
+                continue;
+            }
+            int[] best = {-1, Integer.MAX_VALUE};
+            index.query(ui.simhash, maxDistance, i -> {
+                int d = index.distance(ui.simhash.simhash(), 0, i);
+                if (d < best[1] || d == best[1] && i < best[0]) {
+                    best[0] = i;
+                    best[1] = d;
+                }
+            });
+            if (best[0] >= 0) {
+                res.put(record.getKey(), new AbstractMap.SimpleImmutableEntry<>(targets.get(best[0]).url, best[1]));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Prints the pages of {@link #getNearestMoved(Map, Map, int)}, by distance then URL, with their
+     * distance and the URL of their nearest page.
+     *
+     * @param nrUnmatched number of pages of the first capture whose URL is not in the second
+     */
+    public static void printMoved(Map<String, Map.Entry<String, Integer>> moved, long nrUnmatched, int maxDistance) {
+        System.out.println("Pages of the first capture only, with a page of the second one within " + maxDistance
+                + ": " + moved.size() + " / " + nrUnmatched);
+        moved.entrySet().stream()
+                .sorted(Comparator.comparingInt((Map.Entry<String, Map.Entry<String, Integer>> e) -> e.getValue().getValue())
+                        .thenComparing(Map.Entry::getKey))
+                .forEach(e -> System.out.println(e.getKey() + "\t" + e.getValue().getValue() + "\t" + e.getValue().getKey()));
+    }
+
     public static void printDistances(List<Map.Entry<String, Integer>> list) {
         for (Map.Entry<String, Integer> record : list) {
             System.out.println(record.getKey() + "\t" + record.getValue());
         }
     }
 
+    /**
+     * Same as {@link #printDistances(List)}, with the estimated Jaccard similarity of the pages
+     * as a third column when both captures have their MinHash.
+     */
+    public static void printDistances(List<Map.Entry<String, Integer>> list,
+                                      Map<String, URLInfo> m1, Map<String, URLInfo> m2) {
+        for (Map.Entry<String, Integer> record : list) {
+            MinHash.Signature s1 = m1.get(record.getKey()).minhash;
+            MinHash.Signature s2 = m2.get(record.getKey()).minhash;
+            System.out.println(record.getKey() + "\t" + record.getValue()
+                    + (s1 != null && s2 != null ? "\t" + String.format("%.3f", s1.similarity(s2)) : ""));
+        }
+    }
+
     public static void printRedundancy(List<Map.Entry<Integer, Integer>> list) {
         for (Map.Entry<Integer, Integer> record : list) {
             System.out.println(record.getKey() + " identical copies:" + "\t" + record.getValue() + " resources");
@@ -213,6 +550,9 @@ public class SimHashGenerator {
      */
     public static Map<String, URLInfo> loadHashes(
             String fn, boolean skipErrorStatus, boolean onlyHtml) throws IOException {
+        if (BinaryHashFile.isBinary(fn)) {
+            return BinaryHashFile.open(fn).loadHashes(skipErrorStatus, onlyHtml);
+        }
         Map<String, URLInfo> res = new HashMap<>();
         try (BufferedReader br = new BufferedReader(new FileReader(fn))) {
             String line;
@@ -244,9 +584,11 @@ public class SimHashGenerator {
                     String section =  !kvs.containsKey("section") || kvs.get("section").equals("null")
                             ? null :  kvs.get("section");
                     URLInfo i;
-                    SimhashFingerprint sh = optSimhash("simhash_v1_3", kvs);
-                    SimhashFingerprint shb = optSimhash("simhash_v1_3_snacktory", kvs);
+                    SimhashFingerprint sh = optSimhash(kvs, false);
+                    SimhashFingerprint shb = optSimhash(kvs, true);
                     i = new URLInfo(words[0], st, kvs.get("tika_mime_t"), redir, m, sh, shb, section);
+                    i.minhash = optMinHash(kvs);
+                    i.structure = optSimhash(SimhashFingerprint.Structure.STRUCTURE_TAG_PATH_V1.key(), kvs);
                     res.put(words[0], i);
                 }
             }
@@ -254,21 +596,52 @@ public class SimHashGenerator {
         return res;
     }
 
+    /**
+     * @return the page or main text simhash of a hash line, whatever its algorithm, or null
+     */
+    public static SimhashFingerprint optSimhash(Map<String, String> kvs, boolean mainText) {
+        for (SimhashFingerprint.Algorithm a : SimhashFingerprint.Algorithm.values()) {
+            String key = mainText ? a.mainTextKey() : a.key();
+            if (kvs.containsKey(key)) {
+                return optSimhash(key, kvs);
+            }
+        }
+        return null;
+    }
+
     public static SimhashFingerprint optSimhash(String optHash, Map<String, String> kvs) {
         if (optHash == null || ! kvs.containsKey(optHash) || kvs.get(optHash).equals("null")) {
             return null;
         }
-        return new SimhashFingerprint(
-            SimhashFingerprint.Algorithm.PLAIN_TEXT_SHINGLE3_V1,
-            new long[]{Long.parseLong(kvs.get(optHash))});
+        return SimhashFingerprint.parse(SimhashFingerprint.forKey(optHash), kvs.get(optHash));
+    }
+
+    /**
+     * @return the MinHash of a hash line, whatever its parameters, or null
+     */
+    public static MinHash.Signature optMinHash(Map<String, String> kvs) {
+        for (Map.Entry<String, String> kv : kvs.entrySet()) {
+            if (kv.getKey().startsWith("minhash_") && !kv.getValue().equals("null")) {
+                return MinHash.Signature.parse(MinHash.forKey(kv.getKey()), kv.getValue());
+            }
+        }
+        return null;
     }
 
     /**
      * Returns the content's MD5 as a String.
      */
     public static String getMD5Hash(byte[] content) throws NoSuchAlgorithmException {
-        byte[] md5 = MessageDigest.getInstance("MD5").digest(content);
-        return new BigInteger(1, md5).toString(16);
+        return getMD5Hash(content, 0, content.length);
+    }
+
+    /**
+     * Returns the MD5 of a part of content as a String.
+     */
+    public static String getMD5Hash(byte[] content, int offset, int length) throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        md.update(content, offset, length);
+        return new BigInteger(1, md.digest()).toString(16);
     }
 
     /**
@@ -348,7 +721,13 @@ public class SimHashGenerator {
         long nrTotalHtml = countAll(dists.get("html"));
         long nrTotalNotHtml = countAll(dists.get("not_html"));
         long nrTotal = countAll(dists.get("all"));
-        return new Long[]{nr_unique_html, nrUniqueNotHtml, nrTotalHtml, nrTotalNotHtml, nrTotal};
+        long nrUniqueMinHash = uis.stream().anyMatch(u -> u.minhash != null)
+                ? nrUniqueMinHashes(uis.stream().filter(u -> u.minhash != null).collect(Collectors.toSet())) : -1;
+        List<SimhashFingerprint> structures = uis.stream()
+                .filter(u -> u.structure != null).map(u -> u.structure).collect(Collectors.toList());
+        long nrTemplates = structures.isEmpty() ? -1 : nrUniqueFingerprints(structures, nearDuplicateDistance);
+        return new Long[]{nr_unique_html, nrUniqueNotHtml, nrTotalHtml, nrTotalNotHtml, nrTotal, nrUniqueMinHash,
+                nrTemplates};
     }
 
     public static void printDiversity(Long[] diversity) {
@@ -371,6 +750,13 @@ public class SimHashGenerator {
         } else {
             System.out.println("Did not find any HTML resources.");
         }
+        if (diversity.length > 5 && diversity[5] >= 0) {
+            System.out.println("HTML resources with a MinHash, unique by MinHash (Jaccard >= " + minHashThreshold
+                    + "): " + diversity[5]);
+        }
+        if (diversity.length > 6 && diversity[6] >= 0) {
+            System.out.println("HTML resources with a structural simhash, unique templates: " + diversity[6]);
+        }
         if (nrTotalNotHtml != 0) {
             System.out.println("Non HTML resources, unique / total: " +
                     nrUniqueNotHtml + " / " + nrTotalNotHtml + " = " + (float) nrUniqueNotHtml / nrTotalNotHtml);
@@ -380,28 +766,169 @@ public class SimHashGenerator {
         System.out.println();
     }
 
+    /**
+     * Removes from uis the resources at a distance lower than dist of ui, then those close to
+     * the removed ones, and so on. The removed resources to visit are kept in a list, not in
+     * the call stack, so large groups do not overflow it.
+     */
     public static void removeCloseHashes(Set<URLInfo> uis, URLInfo ui, int dist) {
-        Set<URLInfo> toRemove = new HashSet<>();
-        for (URLInfo e : uis) {
-            if (e.distance(ui) < dist) {
-                toRemove.add(e);
+        Deque<URLInfo> toVisit = new ArrayDeque<>();
+        toVisit.push(ui);
+        boolean first = true;
+        while (!toVisit.isEmpty()) {
+            URLInfo current = toVisit.pop();
+            List<URLInfo> toRemove = new ArrayList<>();
+            for (URLInfo e : uis) {
+                if (e.distance(current) < dist) {
+                    toRemove.add(e);
+                }
             }
-        }
-        uis.removeAll(toRemove);
-        toRemove.remove(ui);
-        for (URLInfo e : toRemove) {
-            removeCloseHashes(uis, e, dist);
+            uis.removeAll(toRemove);
+            for (URLInfo e : toRemove) {
+                if (!(first && e == ui)) {
+                    toVisit.push(e);
+                }
+            }
+            first = false;
         }
     }
 
+    /**
+     * Number of groups of near-duplicates: two resources at a distance of at most
+     * {@link #nearDuplicateDistance} are in the same group, and so are their near-duplicates.
+     */
     public static int nrUniqueSimhashes(Collection<URLInfo> uis) {
+        return nrUniqueSimhashes(uis, nearDuplicateDistance);
+    }
+
+    /**
+     * Number of groups of near-duplicates at a distance of at most maxDistance. When all the
+     * resources have a page simhash, the groups are the connected components of the pairs found
+     * by an index, see {@link #clusterFingerprints(List, int, ForkJoinPool)}.
+     */
+    public static int nrUniqueSimhashes(Collection<URLInfo> uis, int maxDistance) {
+        List<URLInfo> list = new ArrayList<>(new HashSet<>(uis));
+        if (list.isEmpty() || list.stream().anyMatch(u -> u.simhash == null)) {
+            return nrUniqueSimhashesByPairs(list, maxDistance);
+        }
+        return nrUniqueFingerprints(list.stream().map(u -> u.simhash).collect(Collectors.toList()), maxDistance);
+    }
+
+    /**
+     * Number of groups of near-duplicate fingerprints, as {@link #nrUniqueSimhashes(Collection, int)}.
+     */
+    public static int nrUniqueFingerprints(List<SimhashFingerprint> list, int maxDistance) {
+        if (list.isEmpty()) {
+            return 0;
+        }
+        return NearDuplicateClusters.count(clusterFingerprints(list, maxDistance, null));
+    }
+
+    /**
+     * Clusters of the fingerprints at a distance of at most maxDistance. The pairs are found with
+     * the permuted tables of a {@link HammingIndex} while its blocks have at least 16 bits (e.g. up
+     * to a distance of 3 for 64 bits), with a {@link MultiIndexHash} for larger distances.
+     *
+     * @param pool pool of the workers, null to calculate the clusters in the calling thread
+     * @return the cluster of each fingerprint, as the lowest number of its cluster
+     */
+    public static int[] clusterFingerprints(List<SimhashFingerprint> list, int maxDistance, ForkJoinPool pool) {
+        int bits = 64 * list.get(0).simhash().length;
+        if ((maxDistance + 1) * 16 <= bits) {
+            return NearDuplicateClusters.cluster(HammingIndex.of(list, maxDistance), pool);
+        }
+        return NearDuplicateClusters.cluster(MultiIndexHash.of(list), maxDistance, pool);
+    }
+
+    /**
+     * Clusters of near-duplicate pages, as the groups of {@link #nrUniqueSimhashes(Collection)},
+     * calculated by {@link NearDuplicateClusters}. The representative of a cluster is its first
+     * URL in lexicographic order.
+     *
+     * @param uis the resources, those without a page simhash are ignored
+     * @param pool pool of the workers, null to calculate the clusters in the calling thread
+     * @return the representative of each URL, sorted by URL
+     */
+    public static SortedMap<String, String> nearDuplicateClusters(Collection<URLInfo> uis, ForkJoinPool pool) {
+        List<URLInfo> list = uis.stream()
+                .filter(u -> u.simhash != null)
+                .sorted(Comparator.comparing(u -> u.url))
+                .collect(Collectors.toList());
+        SortedMap<String, String> res = new TreeMap<>();
+        if (list.isEmpty()) {
+            return res;
+        }
+        int[] roots = clusterFingerprints(list.stream().map(u -> u.simhash).collect(Collectors.toList()),
+                nearDuplicateDistance, pool);
+        for (int i = 0; i < roots.length; i++) {
+            res.put(list.get(i).url, list.get(roots[i]).url);
+        }
+        return res;
+    }
+
+    /**
+     * Prints the URL, the cluster number (in the order of the representatives) and the
+     * representative of each page, one per line.
+     */
+    public static void printClusters(SortedMap<String, String> representatives, PrintStream out) {
+        Map<String, Integer> ids = new HashMap<>();
+        for (Map.Entry<String, String> e : representatives.entrySet()) {
+            Integer id = ids.get(e.getValue());
+            if (id == null) {
+                id = ids.size();
+                ids.put(e.getValue(), id);
+            }
+            out.println(e.getKey() + "\t" + id + "\t" + e.getValue());
+        }
+    }
+
+    /**
+     * Number of groups of near-duplicates by MinHash: two pages with an estimated Jaccard
+     * similarity of at least {@link #minHashThreshold} are in the same group, and so are their
+     * near-duplicates. The pairs compared are the candidates of a {@link MinHashIndex}.
+     */
+    public static int nrUniqueMinHashes(Collection<URLInfo> uis) {
+        List<URLInfo> list = new ArrayList<>(new HashSet<>(uis));
+        if (list.isEmpty()) {
+            return 0;
+        }
+        MinHash mh = list.get(0).minhash.getMinHash();
+        MinHashIndex index = new MinHashIndex(mh, MinHashIndex.rowsFor(mh, minHashThreshold));
+        for (int i = 0; i < list.size(); i++) {
+            index.add(i, list.get(i).minhash);
+        }
+        boolean[] grouped = new boolean[list.size()];
+        IntArrayList toVisit = new IntArrayList();
+        int nr_unique = 0;
+        for (int i = 0; i < list.size(); i++) {
+            if (grouped[i]) {
+                continue;
+            }
+            nr_unique++;
+            grouped[i] = true;
+            toVisit.add(i);
+            while (!toVisit.isEmpty()) {
+                MinHash.Signature s = list.get(toVisit.removeInt(toVisit.size() - 1)).minhash;
+                for (IntIterator it = index.candidates(s).iterator(); it.hasNext(); ) {
+                    int k = it.nextInt();
+                    if (!grouped[k] && s.similarity(list.get(k).minhash) >= minHashThreshold) {
+                        grouped[k] = true;
+                        toVisit.add(k);
+                    }
+                }
+            }
+        }
+        return nr_unique;
+    }
+
+    private static int nrUniqueSimhashesByPairs(Collection<URLInfo> uis, int maxDistance) {
         int nr_unique = 0;
 
         Set<URLInfo> toProcess = new HashSet<>(uis);
         while (! toProcess.isEmpty()) {
             nr_unique++;
             URLInfo ui = toProcess.iterator().next();
-            removeCloseHashes(toProcess, ui, 4);
+            removeCloseHashes(toProcess, ui, maxDistance + 1);
         }
         return nr_unique;
     }
@@ -418,7 +945,7 @@ public class SimHashGenerator {
         return uis.values().stream()
                 .filter(v -> v.simhash != null
                         || (v.simhashBoilerplate != null
-                            && v.simhashBoilerplate.simhash()[0] != 0))
+                            && !v.simhashBoilerplate.isZero()))
                 .collect(Collectors.toMap(
                         k -> k.url,
                         v -> v
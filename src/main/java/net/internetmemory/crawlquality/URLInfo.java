@@ -1,5 +1,6 @@
 package net.internetmemory.crawlquality;
 
+import net.internetmemory.simhash.MinHash;
 import net.internetmemory.simhash.SimhashFingerprint;
 
 /**
@@ -7,14 +8,41 @@ import net.internetmemory.simhash.SimhashFingerprint;
  */
 public class URLInfo {
     public String url;
+    public int status;
     public String mimeType;
+    public String redirLocation;
     public String md5;
     public SimhashFingerprint simhash;
+    public SimhashFingerprint simhashBoilerplate;
+    public String section;
+    // MinHash of the page, if the hash file has one
+    public MinHash.Signature minhash;
+    // structural simhash of the page, if the hash file has one
+    public SimhashFingerprint structure;
 
-    public URLInfo(String u, String mt, String m, SimhashFingerprint s) {
+    public URLInfo(String u, int st, String mt, String redir, String m,
+                   SimhashFingerprint s, SimhashFingerprint sb, String sec) {
         url = u;
+        status = st;
         mimeType = mt;
+        redirLocation = redir;
         md5 = m;
         simhash = s;
+        simhashBoilerplate = sb;
+        section = sec;
     }
-}
\ No newline at end of file
+
+    /**
+     * Distance between the page simhashes of two resources if both have one, otherwise between
+     * their main text simhashes if both have one, otherwise -1.
+     */
+    public int distance(URLInfo other) {
+        if (simhash != null && other.simhash != null) {
+            return simhash.distance(other.simhash);
+        }
+        if (simhashBoilerplate != null && other.simhashBoilerplate != null) {
+            return simhashBoilerplate.distance(other.simhashBoilerplate);
+        }
+        return -1;
+    }
+}
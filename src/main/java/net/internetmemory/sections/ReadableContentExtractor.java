@@ -390,15 +390,26 @@ public class ReadableContentExtractor {
         }
     }
 
-    // TODO check we can make it static
-    private static final ArticleTextExtractor articleTextExtractor = new ReadableHtmlExtractor();
+    // one extractor per thread, the -hash pipeline calls text() from several workers
+    private static final ThreadLocal<ArticleTextExtractor> articleTextExtractor =
+            ThreadLocal.withInitial(ReadableHtmlExtractor::new);
 
     public static String text(byte[] data, String url) throws Exception {
-        String encoding = HtmlUtils.detectEncoding(data);
-        Document doc = Jsoup.parse(new ByteArrayInputStream(data), encoding, url);
+        return text(data, 0, data.length, url);
+    }
+
+    public static String text(byte[] data, int offset, int length, String url) throws Exception {
+        String encoding = HtmlUtils.detectEncoding(data, offset, length);
+        return text(Jsoup.parse(new ByteArrayInputStream(data, offset, length), encoding, url));
+    }
+
+    /**
+     * Extracts the main text of a parsed page. The extractor modifies the document.
+     */
+    public static String text(Document doc) throws Exception {
         ReadableHtmlOutputFormatter formatter = new ReadableHtmlOutputFormatter();
         JResult result = new JResult();
-        articleTextExtractor.extractContent(result, doc, formatter);
+        articleTextExtractor.get().extractContent(result, doc, formatter);
 
         return result.getText().equals("") ? "" : result.getText() + result.getTitle();
     }
@@ -420,7 +431,7 @@ public class ReadableContentExtractor {
         ReadableHtmlOutputFormatter formatter = new ReadableHtmlOutputFormatter();
         JResult result = new JResult();
 
-        articleTextExtractor.extractContent(result, doc, formatter);
+        articleTextExtractor.get().extractContent(result, doc, formatter);
 
         List<String> imageUrls = new ArrayList<>(result.getImages().size());
         for (ImageResult image : result.getImages()) {
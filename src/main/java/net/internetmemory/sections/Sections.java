@@ -1,5 +1,6 @@
 package net.internetmemory.sections;
 
+import net.internetmemory.crawlquality.BinaryHashFile;
 import net.internetmemory.crawlquality.SimHashGenerator;
 import net.internetmemory.crawlquality.URLInfo;
 import net.internetmemory.utils.Html;
@@ -75,19 +76,20 @@ public class Sections {
         Graph g = TinkerGraph.open();
         Map<String, Vertex> vmap = new HashMap<>();
         optDomain = optDomain == null ? null : stripOptWww(optDomain);
-        try (BufferedReader br = new BufferedReader(new FileReader(fn))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] words = line.split(" ");
-                if (words.length > 2 && words[1].equals("->")) {
-                    if ((optDomain == null || urlInDomain(words[0], optDomain) && urlInDomain(words[2], optDomain)) &&
-                            (!onlyKnownVertices || uis.containsKey(words[0]) && uis.containsKey(words[2]))) {
-                        Vertex v1 = maybeAddVertex(words[0], g, vmap, uis);
-                        Vertex v2 = maybeAddVertex(words[2], g, vmap, uis);
-                        String type = words.length > 3 ? words[3] : "-";
-                        v1.addEdge("outlink", v2, "type", type);
-                        arcs++;
-                        if (arcs % 1000 == 0) System.err.println(arcs + " arcs");
+        if (BinaryHashFile.isBinary(fn)) {
+            BinaryHashFile hashes = BinaryHashFile.open(fn);
+            for (int i = 0; i < hashes.getNrLinks(); i++) {
+                maybeAddEdge(hashes.getLinkSource(i), hashes.getLinkTarget(i), hashes.getLinkType(i),
+                        g, vmap, uis, optDomain, onlyKnownVertices);
+            }
+        } else {
+            try (BufferedReader br = new BufferedReader(new FileReader(fn))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] words = line.split(" ");
+                    if (words.length > 2 && words[1].equals("->")) {
+                        maybeAddEdge(words[0], words[2], words.length > 3 ? words[3] : "-",
+                                g, vmap, uis, optDomain, onlyKnownVertices);
                     }
                 }
             }
@@ -97,6 +99,18 @@ public class Sections {
         return g;
     }
 
+    private static void maybeAddEdge(String from, String to, String type, Graph g, Map<String, Vertex> vmap,
+                                     Map<String, URLInfo> uis, String optDomain, boolean onlyKnownVertices) {
+        if ((optDomain == null || urlInDomain(from, optDomain) && urlInDomain(to, optDomain)) &&
+                (!onlyKnownVertices || uis.containsKey(from) && uis.containsKey(to))) {
+            Vertex v1 = maybeAddVertex(from, g, vmap, uis);
+            Vertex v2 = maybeAddVertex(to, g, vmap, uis);
+            v1.addEdge("outlink", v2, "type", type);
+            arcs++;
+            if (arcs % 1000 == 0) System.err.println(arcs + " arcs");
+        }
+    }
+
     // returns the indegree of nodes with a non-error status code (< 400), only taking into account non-inferred links
     public static Map<Vertex, Long> indegrees(Graph g, String optMimeType) {
         Map<Vertex, Long> res = new HashMap<>();
@@ -344,27 +358,62 @@ public class Sections {
     }
 
     public static String extractSectionHeadUrl(byte[] data, String url) throws IOException, URISyntaxException {
-        String encoding = HtmlUtils.detectEncoding(data);
-        Document doc = Jsoup.parse(new ByteArrayInputStream(data), encoding, url);
+        return extractSectionHeadUrl(data, 0, data.length, url);
+    }
 
+    public static String extractSectionHeadUrl(byte[] data, int offset, int length, String url)
+            throws IOException, URISyntaxException {
+        String encoding = HtmlUtils.detectEncoding(data, offset, length);
+        return extractSectionHeadUrl(Jsoup.parse(new ByteArrayInputStream(data, offset, length), encoding, url), url);
+    }
+
+    /**
+     * Returns the URL of the section head found in the breadcrumb of a parsed page, or null.
+     * The document is not modified.
+     */
+    public static String extractSectionHeadUrl(Document doc, String url) throws IOException, URISyntaxException {
+        return sectionHeadUrl(sectionHeadHrefs(doc), url);
+    }
+
+    /**
+     * Returns the links of the breadcrumb of a parsed page that {@link #sectionHeadUrl(String[], String)}
+     * chooses from, i.e. the first two links of the first breadcrumb having links, not resolved.
+     *
+     * @return the links, or null if there is no breadcrumb with links
+     */
+    public static String[] sectionHeadHrefs(Document doc) {
         String re = ".*(bread.*crumb|ariane|fil).*";
         Elements candidates = doc.select("[class~=" + re + "]");
         candidates.addAll(doc.select("[id~=" + re + "]"));
         for (Element elt : candidates) {
             Elements anchors = elt.select("a[href]");
-            if (anchors.size() == 1) {
-                return Html.absoluteUrl(url, anchors.get(0).attr("href"));
-            } else if (anchors.size() >= 1
-                    && ! new URI(Html.absoluteUrl(url, anchors.get(0).attr("href"))).getPath().equals("/")) {
-                // TODO add check on the domain too, this could be a link to the root of another site
-                return Html.absoluteUrl(url, anchors.get(0).attr("href"));
-            } else if (anchors.size() >= 2) {
-                return Html.absoluteUrl(url, anchors.get(1).attr("href"));
+            if (!anchors.isEmpty()) {
+                String[] hrefs = new String[Math.min(anchors.size(), 2)];
+                for (int i = 0; i < hrefs.length; i++) {
+                    hrefs[i] = anchors.get(i).attr("href");
+                }
+                return hrefs;
             }
         }
         return null;
     }
 
+    /**
+     * Returns the URL of the section head of a page from the links found by
+     * {@link #sectionHeadHrefs(Document)}, or null.
+     */
+    public static String sectionHeadUrl(String[] hrefs, String url) throws IOException, URISyntaxException {
+        if (hrefs == null || hrefs.length == 0) {
+            return null;
+        }
+        String first = Html.absoluteUrl(url, hrefs[0]);
+        if (hrefs.length == 1 || !new URI(first).getPath().equals("/")) {
+            // TODO add check on the domain too, this could be a link to the root of another site
+            return first;
+        }
+        return Html.absoluteUrl(url, hrefs[1]);
+    }
+
     public static Map<String, Map<String, URLInfo>> jsoupSections(Map<String, URLInfo> uis, String domain)
             throws IOException {
         // get all records with jsoup section.
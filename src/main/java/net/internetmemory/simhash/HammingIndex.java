@@ -0,0 +1,214 @@
+package net.internetmemory.simhash;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Index of the fingerprints within a Hamming distance k of a query (Manku, Jain and Das Sarma,
+ * Detecting near-duplicates for web crawling): the bits of the fingerprints are split in k + 1
+ * blocks, two fingerprints at a distance of at most k have at least one equal block. There is
+ * one table per block, where the block of each fingerprint is permuted to the high 32 bits of
+ * a long and the number of the fingerprint is in the low 32 bits; the table is sorted, so the
+ * candidates of a query are a range found by binary search on its block. A block of more than
+ * 32 bits is keyed by its first 32 bits.
+ *
+ * The fingerprints are read from a block of longs, words longs per fingerprint, which must not
+ * be modified afterwards. The index can be queried by several threads.
+ */
+public class HammingIndex {
+    private static final int MAX_KEY_BITS = 32;
+
+    private final long[] fingerprints;
+    private final int words;
+    private final int n;
+    private final int maxDistance;
+    private final int[] blockStart;
+    private final int[] blockLength;
+    private final long[][] tables;
+
+    /**
+     * @param fingerprints the fingerprints, one after the other
+     * @param words number of longs of each fingerprint
+     * @param n number of fingerprints
+     * @param maxDistance the largest distance of the queries, k
+     */
+    public HammingIndex(long[] fingerprints, int words, int n, int maxDistance) {
+        int bits = 64 * words;
+        Preconditions.checkArgument(maxDistance >= 0 && maxDistance < bits,
+                "The distance must be between 0 and %s: %s", bits - 1, maxDistance);
+        this.fingerprints = fingerprints;
+        this.words = words;
+        this.n = n;
+        this.maxDistance = maxDistance;
+        int nrBlocks = maxDistance + 1;
+        blockStart = new int[nrBlocks];
+        blockLength = new int[nrBlocks];
+        tables = new long[nrBlocks][];
+        for (int b = 0; b < nrBlocks; b++) {
+            blockStart[b] = blockStart(b, bits, nrBlocks);
+            blockLength[b] = blockLength(b, bits, nrBlocks);
+            long[] table = new long[n];
+            for (int i = 0; i < n; i++) {
+                table[i] = (key(fingerprints, i * words, b) << 32) | i;
+            }
+            Arrays.sort(table);
+            tables[b] = table;
+        }
+    }
+
+    /**
+     * Index of fingerprints of the same algorithm.
+     */
+    public static HammingIndex of(List<SimhashFingerprint> fps, int maxDistance) {
+        SimhashFingerprint first = fps.get(0);
+        int words = first.simhash().length;
+        long[] block = new long[fps.size() * words];
+        for (int i = 0; i < fps.size(); i++) {
+            SimhashFingerprint fp = fps.get(i);
+            Preconditions.checkArgument(fp.getType() == first.getType(),
+                    "Fingerprints of %s and %s can not be indexed together", first.getType(), fp.getType());
+            System.arraycopy(fp.simhash(), 0, block, i * words, words);
+        }
+        return new HammingIndex(block, words, fps.size(), maxDistance);
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public int getMaxDistance() {
+        return maxDistance;
+    }
+
+    /**
+     * @return the indexed fingerprints, fingerprint i at the offset i * words
+     */
+    public long[] getFingerprints() {
+        return fingerprints;
+    }
+
+    /**
+     * Gives the number of each fingerprint at a distance of at most {@link #getMaxDistance()} of
+     * the query, once, the query itself included if it is indexed.
+     *
+     * @param query the fingerprint, words longs from queryOffset
+     */
+    public void query(long[] query, int queryOffset, IntConsumer out) {
+        for (int b = 0; b < tables.length; b++) {
+            long key = key(query, queryOffset, b);
+            long[] table = tables[b];
+            for (int pos = lowerBound(table, key << 32); pos < n && (table[pos] >>> 32) == key; pos++) {
+                int i = (int) table[pos];
+                if (foundBefore(query, queryOffset, i, b)) {
+                    continue;
+                }
+                if (distance(query, queryOffset, i) <= maxDistance) {
+                    out.accept(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #query(long[], int, IntConsumer)} for the indexed fingerprint i.
+     */
+    public void query(int i, IntConsumer out) {
+        query(fingerprints, i * words, out);
+    }
+
+    /**
+     * @return the Hamming distance of the query to the fingerprint i
+     */
+    public int distance(long[] query, int queryOffset, int i) {
+        int d = 0;
+        for (int w = 0; w < words; w++) {
+            d += Long.bitCount(query[queryOffset + w] ^ fingerprints[i * words + w]);
+        }
+        return d;
+    }
+
+    /**
+     * @return the Hamming distance of the fingerprints i and j
+     */
+    public int distance(int i, int j) {
+        return distance(fingerprints, i * words, j);
+    }
+
+    /**
+     * @return the first bit of block b of nrBlocks
+     */
+    static int blockStart(int b, int bits, int nrBlocks) {
+        return b * bits / nrBlocks;
+    }
+
+    /**
+     * @return the number of bits of the key of block b of nrBlocks
+     */
+    static int blockLength(int b, int bits, int nrBlocks) {
+        return Math.min((b + 1) * bits / nrBlocks - blockStart(b, bits, nrBlocks), MAX_KEY_BITS);
+    }
+
+    public int getWords() {
+        return words;
+    }
+
+    int nrTables() {
+        return tables.length;
+    }
+
+    /**
+     * @return the table of block b: the fingerprints with the same block are consecutive, the
+     * high 32 bits are the block and the low 32 bits the number of the fingerprint
+     */
+    long[] table(int b) {
+        return tables[b];
+    }
+
+    /**
+     * @return true if the fingerprint i has the same key as the query in a block before b, so
+     * it was a candidate of that block already
+     */
+    private boolean foundBefore(long[] query, int queryOffset, int i, int b) {
+        for (int c = 0; c < b; c++) {
+            if (key(query, queryOffset, c) == key(fingerprints, i * words, c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the bits of block b of the fingerprint at offset, as an unsigned number
+     */
+    private long key(long[] fp, int offset, int b) {
+        int start = blockStart[b];
+        int length = blockLength[b];
+        int w = start >>> 6;
+        int s = start & 63;
+        long bits = fp[offset + w] << s;
+        if (s + length > 64) {
+            bits |= fp[offset + w + 1] >>> (64 - s);
+        }
+        return bits >>> (64 - length);
+    }
+
+    /**
+     * @return the position of the first element of the table not lower than value
+     */
+    private static int lowerBound(long[] table, long value) {
+        int from = 0;
+        int to = table.length;
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (table[middle] < value) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+}
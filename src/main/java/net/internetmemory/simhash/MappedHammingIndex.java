@@ -0,0 +1,163 @@
+package net.internetmemory.simhash;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.util.function.IntConsumer;
+
+/**
+ * A {@link HammingIndex} read from buffers, e.g. memory-mapped from a file, instead of built in
+ * memory: the fingerprints and the sorted tables, as written by {@link #write(HammingIndex,
+ * DataOutputStream)}. A query only reads the ranges of the tables of its blocks and the
+ * fingerprints of its candidates, so its cost is a few page faults, not a load of the index.
+ * The index can be queried by several threads.
+ */
+public class MappedHammingIndex {
+    private final LongBuffer fingerprints;
+    private final LongBuffer[] tables;
+    private final int words;
+    private final int n;
+    private final int maxDistance;
+    private final int[] blockStart;
+    private final int[] blockLength;
+
+    /**
+     * @param fingerprints the fingerprints, one after the other
+     * @param tables the tables, one per block, as written by {@link #write(HammingIndex, DataOutputStream)}
+     * @param words number of longs of each fingerprint
+     * @param n number of fingerprints
+     */
+    public MappedHammingIndex(LongBuffer fingerprints, LongBuffer[] tables, int words, int n) {
+        this.fingerprints = fingerprints;
+        this.tables = tables;
+        this.words = words;
+        this.n = n;
+        this.maxDistance = tables.length - 1;
+        int bits = 64 * words;
+        blockStart = new int[tables.length];
+        blockLength = new int[tables.length];
+        for (int b = 0; b < tables.length; b++) {
+            blockStart[b] = HammingIndex.blockStart(b, bits, tables.length);
+            blockLength[b] = HammingIndex.blockLength(b, bits, tables.length);
+        }
+    }
+
+    /**
+     * Writes the fingerprints and the tables of the index.
+     */
+    public static void write(HammingIndex index, DataOutputStream out) throws IOException {
+        for (long w : index.getFingerprints()) {
+            out.writeLong(w);
+        }
+        for (int b = 0; b < index.nrTables(); b++) {
+            for (long entry : index.table(b)) {
+                out.writeLong(entry);
+            }
+        }
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public int getMaxDistance() {
+        return maxDistance;
+    }
+
+    /**
+     * @return the fingerprint i
+     */
+    public long[] fingerprint(int i) {
+        long[] res = new long[words];
+        for (int w = 0; w < words; w++) {
+            res[w] = fingerprints.get(i * words + w);
+        }
+        return res;
+    }
+
+    /**
+     * Gives the number of each fingerprint at a distance of at most radius of the query, once.
+     *
+     * @param query the fingerprint, words longs from queryOffset
+     * @param radius at most {@link #getMaxDistance()}
+     */
+    public void query(long[] query, int queryOffset, int radius, IntConsumer out) {
+        if (radius > maxDistance) {
+            throw new IllegalArgumentException("Radius " + radius + " larger than the index distance " + maxDistance);
+        }
+        for (int b = 0; b < tables.length; b++) {
+            long key = key(query, queryOffset, b);
+            LongBuffer table = tables[b];
+            for (int pos = lowerBound(table, key << 32); pos < n && (table.get(pos) >>> 32) == key; pos++) {
+                int i = (int) table.get(pos);
+                if (foundBefore(query, queryOffset, i, b)) {
+                    continue;
+                }
+                if (distance(query, queryOffset, i) <= radius) {
+                    out.accept(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the Hamming distance of the query to the fingerprint i
+     */
+    public int distance(long[] query, int queryOffset, int i) {
+        int d = 0;
+        for (int w = 0; w < words; w++) {
+            d += Long.bitCount(query[queryOffset + w] ^ fingerprints.get(i * words + w));
+        }
+        return d;
+    }
+
+    /**
+     * @return true if the fingerprint i has the same key as the query in a block before b
+     */
+    private boolean foundBefore(long[] query, int queryOffset, int i, int b) {
+        for (int c = 0; c < b; c++) {
+            if (key(query, queryOffset, c) == indexedKey(i, c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long key(long[] fp, int offset, int b) {
+        int w = blockStart[b] >>> 6;
+        return key(fp[offset + w], blockStart[b] + blockLength[b] > 64 * (w + 1) ? fp[offset + w + 1] : 0, b);
+    }
+
+    private long indexedKey(int i, int b) {
+        int w = blockStart[b] >>> 6;
+        return key(fingerprints.get(i * words + w),
+                blockStart[b] + blockLength[b] > 64 * (w + 1) ? fingerprints.get(i * words + w + 1) : 0, b);
+    }
+
+    /**
+     * @return the bits of block b, from the word of its start and the next one, as in {@link HammingIndex}
+     */
+    private long key(long word, long next, int b) {
+        int s = blockStart[b] & 63;
+        int length = blockLength[b];
+        long bits = word << s;
+        if (s + length > 64) {
+            bits |= next >>> (64 - s);
+        }
+        return bits >>> (64 - length);
+    }
+
+    private int lowerBound(LongBuffer table, long value) {
+        int from = 0;
+        int to = n;
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (table.get(middle) < value) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+}
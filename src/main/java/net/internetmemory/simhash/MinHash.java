@@ -0,0 +1,236 @@
+package net.internetmemory.simhash;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.internetmemory.utils.NodeVisitorUtils;
+import net.internetmemory.utils.TextExtractionVisitor;
+import org.w3c.dom.Document;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * b-bit MinHash of the shingles of a text: the same shingles as PLAIN_TEXT_SHINGLE3_V3 (all
+ * the windows of 3 tokens, hashed by {@link RollingShingleHash}) are hashed again by nrHashes
+ * functions, the minimum of each function is kept and only its lowest bits are stored. The
+ * fraction of equal values of two signatures estimates the Jaccard similarity of the shingle
+ * sets, corrected for the values equal by chance (Li and Koenig, b-bit minwise hashing).
+ *
+ * The signatures of the texts and documents use the {@link SimhashKernel} of the calling thread.
+ */
+public class MinHash {
+    // the parameters read in the hash files, shared by their signatures
+    private static final ConcurrentHashMap<String, MinHash> byKey = new ConcurrentHashMap<>();
+
+    private final int nrHashes;
+    private final int bits;
+    // the hash functions are (h ^ xors[i]) * multipliers[i], mixed
+    private final long[] xors;
+    private final long[] multipliers;
+
+    /**
+     * @param nrHashes number of hash functions (permutations)
+     * @param bits bits kept of each minimum: 1, 2, 4, 8, 16, 32 or 64
+     */
+    public MinHash(int nrHashes, int bits) {
+        Preconditions.checkArgument(nrHashes > 0, "The number of hashes must be positive: %s", nrHashes);
+        Preconditions.checkArgument(bits > 0 && bits <= 64 && Integer.bitCount(bits) == 1,
+                "The bits must be a power of 2 up to 64: %s", bits);
+        this.nrHashes = nrHashes;
+        this.bits = bits;
+        xors = new long[nrHashes];
+        multipliers = new long[nrHashes];
+        long seed = 0x2545f4914f6cdd1dL;
+        for (int i = 0; i < nrHashes; i++) {
+            xors[i] = RollingShingleHash.fmix64(seed + 2 * i);
+            multipliers[i] = RollingShingleHash.fmix64(seed + 2 * i + 1) | 1;
+        }
+    }
+
+    /**
+     * @return the MinHash of a key of the hash files (minhash_NRHASHES_BITS), or null
+     */
+    public static MinHash forKey(String key) {
+        String[] parts = key.split("_");
+        if (parts.length != 3 || !parts[0].equals("minhash")) {
+            return null;
+        }
+        return byKey.computeIfAbsent(key, k -> new MinHash(Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+    }
+
+    /**
+     * @return the key of the signatures in the hash files
+     */
+    public String key() {
+        return "minhash_" + nrHashes + "_" + bits;
+    }
+
+    public int getNrHashes() {
+        return nrHashes;
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    /**
+     * @return the number of longs of a signature
+     */
+    public int words() {
+        return (nrHashes * bits + 63) / 64;
+    }
+
+    /**
+     * Signature of a set of shingle hashes.
+     */
+    public Signature signature(LongOpenHashSet shingles) {
+        long[] mins = new long[nrHashes];
+        Arrays.fill(mins, Long.MAX_VALUE);
+        for (LongIterator it = shingles.iterator(); it.hasNext(); ) {
+            long h = it.nextLong();
+            for (int i = 0; i < nrHashes; i++) {
+                long x = (h ^ xors[i]) * multipliers[i];
+                x ^= x >>> 29;
+                if (x < mins[i]) {
+                    mins[i] = x;
+                }
+            }
+        }
+        long[] words = new long[words()];
+        long mask = bits == 64 ? -1L : (1L << bits) - 1;
+        for (int i = 0; i < nrHashes; i++) {
+            int bit = i * bits;
+            words[bit >>> 6] |= (mins[i] & mask) << (bit & 63);
+        }
+        return new Signature(this, words);
+    }
+
+    /**
+     * Signature of the tokens of texts, tokenized as the simhashes.
+     */
+    public Signature signature(String... texts) {
+        SimhashKernel kernel = SimhashKernel.get();
+        kernel.begin(3);
+        TokenHasher.get().hash(kernel::add, texts);
+        return signature(kernel.shingles());
+    }
+
+    /**
+     * Signature of tokens in lower case.
+     */
+    public Signature signature(List<String> tokens) {
+        SimhashKernel kernel = SimhashKernel.get();
+        kernel.begin(3);
+        for (String token : tokens) {
+            kernel.add(token.hashCode());
+        }
+        return signature(kernel.shingles());
+    }
+
+    /**
+     * Signature of the title and the text of a page, extracted as for the simhash of the page.
+     */
+    public Signature signature(Document document) {
+        TextExtractionVisitor visitor = new TextExtractionVisitor();
+        if (!NodeVisitorUtils.traverseNodes(visitor, document.getDocumentElement())) {
+            throw new SimhashFingerprint.Error();
+        }
+        return signature(visitor.getTitle(), visitor.getBody());
+    }
+
+    /**
+     * @return the b-bit value of hash function i in a signature
+     */
+    long value(long[] words, int i) {
+        int bit = i * bits;
+        long v = words[bit >>> 6] >>> (bit & 63);
+        return bits == 64 ? v : v & ((1L << bits) - 1);
+    }
+
+    /**
+     * A MinHash signature, with the parameters it was calculated with.
+     */
+    public static class Signature {
+        private final MinHash minHash;
+        private final long[] words;
+
+        public Signature(MinHash minHash, long[] words) {
+            this.minHash = minHash;
+            this.words = words;
+        }
+
+        public MinHash getMinHash() {
+            return minHash;
+        }
+
+        public long[] words() {
+            return words;
+        }
+
+        /**
+         * @return true if the signatures have the same parameters
+         */
+        public boolean comparable(Signature other) {
+            return minHash.nrHashes == other.minHash.nrHashes && minHash.bits == other.minHash.bits;
+        }
+
+        /**
+         * @return the number of hash functions with the same value in both signatures
+         */
+        public int matches(Signature other) {
+            Preconditions.checkArgument(comparable(other),
+                    "Signatures %s and %s can not be compared.", minHash.key(), other.minHash.key());
+            int matches = 0;
+            for (int i = 0; i < minHash.nrHashes; i++) {
+                if (minHash.value(words, i) == minHash.value(other.words, i)) {
+                    matches++;
+                }
+            }
+            return matches;
+        }
+
+        /**
+         * @return the estimated Jaccard similarity of the shingle sets, between 0 and 1: the
+         * b-bit values of different minimums are equal with a probability of 1 / 2^b
+         */
+        public double similarity(Signature other) {
+            double equal = (double) matches(other) / minHash.nrHashes;
+            if (minHash.bits >= 32) {
+                return equal;
+            }
+            double chance = 1.0 / (1L << minHash.bits);
+            return Math.max(0, (equal - chance) / (1 - chance));
+        }
+
+        /**
+         * Parses a signature written by {@link #toString()}.
+         */
+        public static Signature parse(MinHash minHash, String s) {
+            Preconditions.checkArgument(s.length() == 16 * minHash.words(),
+                    "%s signatures have %s hexadecimal digits: %s", minHash.key(), 16 * minHash.words(), s);
+            long[] words = new long[minHash.words()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = Long.parseUnsignedLong(s.substring(16 * i, 16 * i + 16), 16);
+            }
+            return new Signature(minHash, words);
+        }
+
+        /**
+         * @return the words of the signature, each one as 16 hexadecimal digits
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(16 * words.length);
+            for (long w : words) {
+                String hex = Long.toHexString(w);
+                for (int i = hex.length(); i < 16; i++) {
+                    sb.append('0');
+                }
+                sb.append(hex);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package net.internetmemory.simhash;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+/**
+ * LSH banding index of MinHash signatures: the values of the hash functions are split in bands
+ * of rows consecutive values, two signatures are candidates if all the values of one of their
+ * bands are equal. With a similarity s, the probability to be candidates is
+ * 1 - (1 - s'^rows)^bands, where s' is the probability of equal b-bit values.
+ */
+public class MinHashIndex {
+    private final MinHash minHash;
+    private final int rows;
+    private final int bands;
+    private final Long2ObjectOpenHashMap<IntArrayList>[] buckets;
+
+    /**
+     * @param minHash parameters of the signatures
+     * @param rows number of values per band, the bands are nrHashes / rows
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public MinHashIndex(MinHash minHash, int rows) {
+        Preconditions.checkArgument(rows > 0 && rows <= minHash.getNrHashes(),
+                "The rows must be between 1 and %s: %s", minHash.getNrHashes(), rows);
+        this.minHash = minHash;
+        this.rows = rows;
+        this.bands = minHash.getNrHashes() / rows;
+        this.buckets = new Long2ObjectOpenHashMap[bands];
+        for (int b = 0; b < bands; b++) {
+            buckets[b] = new Long2ObjectOpenHashMap<>();
+        }
+    }
+
+    /**
+     * Rows per band such that signatures of similarity threshold are candidates with a
+     * probability of about 1/2 or more ((1/bands)^(1/rows) is close to the probability of equal
+     * values at this similarity).
+     */
+    public static int rowsFor(MinHash minHash, double threshold) {
+        if (minHash.getBits() < 32) {
+            threshold += (1 - threshold) / (1L << minHash.getBits());
+        }
+        int best = 1;
+        double bestError = Double.MAX_VALUE;
+        for (int rows = 1; rows <= minHash.getNrHashes(); rows++) {
+            int bands = minHash.getNrHashes() / rows;
+            double error = Math.abs(Math.pow(1.0 / bands, 1.0 / rows) - threshold);
+            if (error < bestError) {
+                best = rows;
+                bestError = error;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Adds a signature.
+     *
+     * @param id number of the signature, returned by {@link #candidates(MinHash.Signature)}
+     */
+    public void add(int id, MinHash.Signature signature) {
+        check(signature);
+        for (int b = 0; b < bands; b++) {
+            buckets[b].computeIfAbsent(bandHash(signature, b), k -> new IntArrayList(1)).add(id);
+        }
+    }
+
+    /**
+     * @return the ids of the signatures sharing a band with the given one
+     */
+    public IntOpenHashSet candidates(MinHash.Signature signature) {
+        check(signature);
+        IntOpenHashSet res = new IntOpenHashSet();
+        for (int b = 0; b < bands; b++) {
+            IntArrayList ids = buckets[b].get(bandHash(signature, b));
+            if (ids != null) {
+                res.addAll(ids);
+            }
+        }
+        return res;
+    }
+
+    private void check(MinHash.Signature signature) {
+        Preconditions.checkArgument(signature.getMinHash().getNrHashes() == minHash.getNrHashes()
+                && signature.getMinHash().getBits() == minHash.getBits(),
+                "Signatures %s can not be indexed with %s.", signature.getMinHash().key(), minHash.key());
+    }
+
+    private long bandHash(MinHash.Signature signature, int band) {
+        long h = band;
+        for (int i = band * rows; i < (band + 1) * rows; i++) {
+            h = RollingShingleHash.fmix64(h * 31 + minHash.value(signature.words(), i));
+        }
+        return h;
+    }
+}
@@ -0,0 +1,265 @@
+package net.internetmemory.simhash;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Multi-index hashing (Norouzi, Punjani and Fleet, Fast search in Hamming space with multi-index
+ * hashing): the bits of the fingerprints are split in m substrings, each indexed by a table.
+ * With r = m * a + b (b lower than m), a fingerprint at a distance of at most r of a query is at
+ * a distance of at most a of the query in one of the first b + 1 substrings, or at most a - 1 in
+ * one of the others. A query looks up, in each table, the keys at these distances of its
+ * substring, so the radius is a parameter of the query and not of the index, unlike the
+ * {@link HammingIndex} which needs r + 1 tables. When the substrings are about log2(n) bits
+ * long, each lookup finds about one candidate.
+ *
+ * The tables are sorted, the substring of each fingerprint in the high 32 bits of a long and the
+ * number of the fingerprint in the low 32 bits. When the lookups of a query would cost more than
+ * a scan of the fingerprints, the query scans them with {@link SimhashOps#distances}. The fingerprints are read from a block of
+ * longs, words longs per fingerprint, which must not be modified afterwards. The index can be
+ * queried by several threads.
+ */
+public class MultiIndexHash {
+    private static final int MAX_KEY_BITS = 32;
+
+    private final long[] fingerprints;
+    private final int words;
+    private final int n;
+    private final int[] substringStart;
+    private final int[] substringLength;
+    private final long[][] tables;
+    // algorithm of the fingerprints, if the index was built by of()
+    private SimhashFingerprint.Type type;
+
+    /**
+     * @param fingerprints the fingerprints, one after the other
+     * @param words number of longs of each fingerprint
+     * @param n number of fingerprints
+     * @param nrSubstrings number of substrings m, each of at most 32 bits
+     */
+    public MultiIndexHash(long[] fingerprints, int words, int n, int nrSubstrings) {
+        int bits = 64 * words;
+        Preconditions.checkArgument(nrSubstrings >= (bits + MAX_KEY_BITS - 1) / MAX_KEY_BITS && nrSubstrings <= bits,
+                "The number of substrings must be between %s and %s: %s",
+                (bits + MAX_KEY_BITS - 1) / MAX_KEY_BITS, bits, nrSubstrings);
+        this.fingerprints = fingerprints;
+        this.words = words;
+        this.n = n;
+        substringStart = new int[nrSubstrings];
+        substringLength = new int[nrSubstrings];
+        tables = new long[nrSubstrings][];
+        for (int j = 0; j < nrSubstrings; j++) {
+            substringStart[j] = j * bits / nrSubstrings;
+            substringLength[j] = (j + 1) * bits / nrSubstrings - substringStart[j];
+            long[] table = new long[n];
+            for (int i = 0; i < n; i++) {
+                table[i] = (key(fingerprints, i * words, j) << 32) | i;
+            }
+            Arrays.sort(table);
+            tables[j] = table;
+        }
+    }
+
+    /**
+     * Index of n fingerprints of words longs with substrings of about log2(n) bits.
+     */
+    public MultiIndexHash(long[] fingerprints, int words, int n) {
+        this(fingerprints, words, n, nrSubstrings(64 * words, n));
+    }
+
+    /**
+     * Index of fingerprints of the same algorithm.
+     */
+    public static MultiIndexHash of(List<SimhashFingerprint> fps) {
+        SimhashFingerprint first = fps.get(0);
+        int words = first.simhash().length;
+        long[] block = new long[fps.size() * words];
+        for (int i = 0; i < fps.size(); i++) {
+            SimhashFingerprint fp = fps.get(i);
+            Preconditions.checkArgument(fp.getType() == first.getType(),
+                    "Fingerprints of %s and %s can not be indexed together", first.getType(), fp.getType());
+            System.arraycopy(fp.simhash(), 0, block, i * words, words);
+        }
+        MultiIndexHash index = new MultiIndexHash(block, words, fps.size());
+        index.type = first.getType();
+        return index;
+    }
+
+    /**
+     * @return the number of substrings for n fingerprints of the given number of bits
+     */
+    static int nrSubstrings(int bits, int n) {
+        int length = Math.max(8, Math.min(MAX_KEY_BITS, 64 - Long.numberOfLeadingZeros(Math.max(1, n))));
+        return Math.max((bits + MAX_KEY_BITS - 1) / MAX_KEY_BITS, bits / length);
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public int getWords() {
+        return words;
+    }
+
+    public int getNrSubstrings() {
+        return tables.length;
+    }
+
+    /**
+     * @return the indexed fingerprints, fingerprint i at the offset i * words
+     */
+    public long[] getFingerprints() {
+        return fingerprints;
+    }
+
+    /**
+     * Gives the number of each fingerprint at a distance of at most radius of the query, once,
+     * the query itself included if it is indexed.
+     *
+     * @param query the fingerprint, words longs from queryOffset
+     */
+    public void query(long[] query, int queryOffset, int radius, IntConsumer out) {
+        int m = tables.length;
+        int[] radii = new int[m];
+        long lookups = 0;
+        for (int j = 0; j < m; j++) {
+            radii[j] = Math.min(radius / m - (j <= radius % m ? 0 : 1), substringLength[j]);
+            lookups += nrKeys(substringLength[j], radii[j]);
+        }
+        // a lookup is a binary search, with a cache miss per step, the scan is sequential
+        if (4 * lookups * (64 - Long.numberOfLeadingZeros(Math.max(1, n))) > n) {
+            int[] distances = new int[n];
+            SimhashOps.get().distances(query, queryOffset, words, fingerprints, n, distances);
+            for (int i = 0; i < n; i++) {
+                if (distances[i] <= radius) {
+                    out.accept(i);
+                }
+            }
+            return;
+        }
+        for (int j = 0; j < m; j++) {
+            long key = key(query, queryOffset, j);
+            long[] table = tables[j];
+            int length = substringLength[j];
+            for (int k = 0; k <= radii[j]; k++) {
+                // the masks of length bits with k bits set, in increasing order
+                long mask = (1L << k) - 1;
+                while (mask < (1L << length)) {
+                    long flipped = key ^ mask;
+                    for (int pos = lowerBound(table, flipped << 32); pos < n && (table[pos] >>> 32) == flipped; pos++) {
+                        int i = (int) table[pos];
+                        if (!foundBefore(query, queryOffset, i, j, radii)
+                                && distance(query, queryOffset, i) <= radius) {
+                            out.accept(i);
+                        }
+                    }
+                    if (mask == 0) {
+                        break;
+                    }
+                    long lowest = mask & -mask;
+                    long next = mask + lowest;
+                    mask = (((next ^ mask) >>> 2) / lowest) | next;
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #query(long[], int, int, IntConsumer)} for the indexed fingerprint i.
+     */
+    public void query(int i, int radius, IntConsumer out) {
+        query(fingerprints, i * words, radius, out);
+    }
+
+    /**
+     * Same as {@link #query(long[], int, int, IntConsumer)} for a fingerprint of the algorithm
+     * of the indexed ones.
+     */
+    public void query(SimhashFingerprint query, int radius, IntConsumer out) {
+        Preconditions.checkArgument(type == null || query.getType() == type,
+                "Fingerprint of %s queried in an index of %s", query.getType(), type);
+        Preconditions.checkArgument(query.simhash().length == words,
+                "Fingerprint of %s longs queried in an index of %s", query.simhash().length, words);
+        query(query.simhash(), 0, radius, out);
+    }
+
+    /**
+     * @return the Hamming distance of the query to the fingerprint i
+     */
+    public int distance(long[] query, int queryOffset, int i) {
+        int d = 0;
+        for (int w = 0; w < words; w++) {
+            d += Long.bitCount(query[queryOffset + w] ^ fingerprints[i * words + w]);
+        }
+        return d;
+    }
+
+    /**
+     * @return the Hamming distance of the fingerprints i and j
+     */
+    public int distance(int i, int j) {
+        return distance(fingerprints, i * words, j);
+    }
+
+    /**
+     * @return true if the fingerprint i is within the radius of the query in a substring before
+     * j, so it was a candidate of that table already
+     */
+    private boolean foundBefore(long[] query, int queryOffset, int i, int j, int[] radii) {
+        for (int c = 0; c < j; c++) {
+            if (radii[c] >= 0
+                    && Long.bitCount(key(query, queryOffset, c) ^ key(fingerprints, i * words, c)) <= radii[c]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of keys of length bits at a distance of at most radius of a key
+     */
+    private static long nrKeys(int length, int radius) {
+        long total = 0;
+        long binomial = 1;
+        for (int k = 0; k <= radius; k++) {
+            total += binomial;
+            binomial = binomial * (length - k) / (k + 1);
+        }
+        return total;
+    }
+
+    /**
+     * @return the bits of substring j of the fingerprint at offset, as an unsigned number
+     */
+    private long key(long[] fp, int offset, int j) {
+        int start = substringStart[j];
+        int length = substringLength[j];
+        int w = start >>> 6;
+        int s = start & 63;
+        long bits = fp[offset + w] << s;
+        if (s + length > 64) {
+            bits |= fp[offset + w + 1] >>> (64 - s);
+        }
+        return bits >>> (64 - length);
+    }
+
+    /**
+     * @return the position of the first element of the table not lower than value
+     */
+    private static int lowerBound(long[] table, long value) {
+        int from = 0;
+        int to = table.length;
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (table[middle] < value) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+}
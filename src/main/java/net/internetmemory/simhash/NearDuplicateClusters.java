@@ -0,0 +1,360 @@
+package net.internetmemory.simhash;
+
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Clusters of near-duplicates: the connected components of the pairs of fingerprints at a
+ * distance of at most {@link HammingIndex#getMaxDistance()}. The candidate pairs are those of
+ * the buckets of the tables of the index (the fingerprints with the same block), each
+ * ForkJoin task compares the pairs of a range of buckets, or of rows of a large bucket, and
+ * merges the close ones in a lock-free union-find. With a {@link MultiIndexHash}, for the
+ * distances too large for the tables of a HammingIndex, each task queries the index for a
+ * range of fingerprints instead. The root of a cluster is its lowest fingerprint number,
+ * whatever the order of the merges, so the clusters are the same with any number of threads.
+ *
+ * The identical fingerprints (e.g. the zero fingerprint of the pages without text, or soft
+ * 404s) are merged first, after sorting them, and only the first of each is compared or
+ * queried, so they do not make quadratic buckets.
+ */
+public class NearDuplicateClusters {
+    // pairs compared by a task without splitting it
+    private static final long GRAIN = 1 << 16;
+    // fingerprints queried by a task without splitting it
+    private static final int QUERY_GRAIN = 256;
+
+    private final AtomicIntegerArray parents;
+    // true for a fingerprint identical to one of a lower number
+    private final boolean[] copy;
+
+    private NearDuplicateClusters(long[] fingerprints, int words, int n) {
+        this.parents = new AtomicIntegerArray(n);
+        for (int i = 0; i < n; i++) {
+            parents.set(i, i);
+        }
+        this.copy = new boolean[n];
+        mergeIdentical(fingerprints, words, n);
+    }
+
+    /**
+     * @param pool pool of the workers, null to compare the pairs in the calling thread
+     * @return the cluster of each fingerprint, as the lowest number of its cluster
+     */
+    public static int[] cluster(HammingIndex index, ForkJoinPool pool) {
+        NearDuplicateClusters clusters =
+                new NearDuplicateClusters(index.getFingerprints(), index.getWords(), index.size());
+        for (int b = 0; b < index.nrTables(); b++) {
+            Buckets buckets = clusters.new Buckets(index, index.table(b));
+            if (pool == null) {
+                buckets.compare(0, buckets.size());
+            } else {
+                pool.invoke(new Task(buckets, 0, buckets.size()));
+            }
+        }
+        return clusters.roots();
+    }
+
+    /**
+     * Same as {@link #cluster(HammingIndex, ForkJoinPool)}, the pairs at a distance of at most
+     * radius being found by queries of the index.
+     */
+    public static int[] cluster(MultiIndexHash index, int radius, ForkJoinPool pool) {
+        NearDuplicateClusters clusters =
+                new NearDuplicateClusters(index.getFingerprints(), index.getWords(), index.size());
+        if (pool == null) {
+            clusters.query(index, radius, 0, index.size());
+        } else {
+            pool.invoke(clusters.new QueryTask(index, radius, 0, index.size()));
+        }
+        return clusters.roots();
+    }
+
+    /**
+     * @return the number of clusters of the roots returned by {@link #cluster(HammingIndex, ForkJoinPool)}
+     */
+    public static int count(int[] roots) {
+        int n = 0;
+        for (int i = 0; i < roots.length; i++) {
+            if (roots[i] == i) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private int[] roots() {
+        int[] res = new int[parents.length()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = find(i);
+        }
+        return res;
+    }
+
+    /**
+     * Merges the identical fingerprints, sorted by their words then their number, and marks all
+     * but the first of each run as a copy.
+     */
+    private void mergeIdentical(long[] fingerprints, int words, int n) {
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        IntArrays.quickSort(order, new AbstractIntComparator() {
+            @Override
+            public int compare(int i, int j) {
+                for (int w = 0; w < words; w++) {
+                    int c = Long.compare(fingerprints[i * words + w], fingerprints[j * words + w]);
+                    if (c != 0) {
+                        return c;
+                    }
+                }
+                return Integer.compare(i, j);
+            }
+        });
+        int first = 0;
+        for (int k = 1; k < n; k++) {
+            int i = order[k];
+            boolean identical = true;
+            for (int w = 0; w < words && identical; w++) {
+                identical = fingerprints[i * words + w] == fingerprints[order[first] * words + w];
+            }
+            if (identical) {
+                // the first of the run has the lowest number, it is the root
+                parents.set(i, order[first]);
+                copy[i] = true;
+            } else {
+                first = k;
+            }
+        }
+    }
+
+    /**
+     * The buckets of a table of the index, without the copies, and the number of pairs before
+     * each bucket, to split the comparisons in tasks of about the same number of pairs.
+     */
+    private class Buckets {
+        final HammingIndex index;
+        final long[] table;
+        final int[] starts;
+        final long[] pairsBefore;
+
+        Buckets(HammingIndex index, long[] entries) {
+            this.index = index;
+            LongArrayList kept = new LongArrayList(entries.length);
+            for (long entry : entries) {
+                if (!copy[(int) entry]) {
+                    kept.add(entry);
+                }
+            }
+            table = kept.toLongArray();
+            IntArrayList s = new IntArrayList();
+            LongArrayList p = new LongArrayList();
+            long pairs = 0;
+            for (int pos = 0; pos <= table.length; pos++) {
+                if (pos == table.length || pos == 0 || (table[pos] >>> 32) != (table[pos - 1] >>> 32)) {
+                    if (!s.isEmpty()) {
+                        long size = pos - s.getInt(s.size() - 1);
+                        pairs += size * (size - 1) / 2;
+                    }
+                    s.add(pos);
+                    p.add(pairs);
+                }
+            }
+            starts = s.toIntArray();
+            pairsBefore = p.toLongArray();
+        }
+
+        /**
+         * @return the number of buckets
+         */
+        int size() {
+            return starts.length - 1;
+        }
+
+        /**
+         * @return the number of pairs of the buckets from (included) to to (excluded)
+         */
+        long pairs(int from, int to) {
+            return pairsBefore[to] - pairsBefore[from];
+        }
+
+        /**
+         * Merges the close pairs of the buckets from (included) to to (excluded).
+         */
+        void compare(int from, int to) {
+            for (int bucket = from; bucket < to; bucket++) {
+                compareRows(bucket, starts[bucket], starts[bucket + 1]);
+            }
+        }
+
+        /**
+         * Merges the close pairs of a bucket whose first fingerprint is in the rows from
+         * (included) to to (excluded) of the table.
+         */
+        void compareRows(int bucket, int from, int to) {
+            int end = starts[bucket + 1];
+            for (int p = from; p < to; p++) {
+                int i = (int) table[p];
+                for (int q = p + 1; q < end; q++) {
+                    int j = (int) table[q];
+                    if (find(i) != find(j) && index.distance(i, j) <= index.getMaxDistance()) {
+                        union(i, j);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges the fingerprints from (included) to to (excluded) with those of higher numbers
+     * within the radius.
+     */
+    private void query(MultiIndexHash index, int radius, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (copy[i]) {
+                continue;
+            }
+            int current = i;
+            index.query(i, radius, j -> {
+                if (j > current && find(current) != find(j)) {
+                    union(current, j);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the root of the cluster of i, halving the path to it
+     */
+    private int find(int i) {
+        while (true) {
+            int parent = parents.get(i);
+            if (parent == i) {
+                return i;
+            }
+            int grandParent = parents.get(parent);
+            // a concurrent change of the parent of i only makes the path shorter
+            parents.compareAndSet(i, parent, grandParent);
+            i = grandParent;
+        }
+    }
+
+    /**
+     * Links the root of the higher number to the other one, retrying if a root was linked
+     * by another thread in the meantime.
+     */
+    private void union(int i, int j) {
+        while (true) {
+            int a = find(i);
+            int b = find(j);
+            if (a == b) {
+                return;
+            }
+            if (a < b) {
+                int t = a;
+                a = b;
+                b = t;
+            }
+            if (parents.compareAndSet(a, a, b)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Compares the buckets from (included) to to (excluded), split by their number of pairs.
+     */
+    private static class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Buckets buckets;
+        private final int from;
+        private final int to;
+
+        Task(Buckets buckets, int from, int to) {
+            this.buckets = buckets;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (buckets.pairs(from, to) <= GRAIN) {
+                buckets.compare(from, to);
+            } else if (to - from == 1) {
+                new RowTask(buckets, from, buckets.starts[from], buckets.starts[from + 1]).compute();
+            } else {
+                // the first bucket after half of the pairs, at least one bucket on each side
+                long half = buckets.pairsBefore[from] + buckets.pairs(from, to) / 2;
+                int middle = from + 1;
+                while (middle < to - 1 && buckets.pairsBefore[middle + 1] <= half) {
+                    middle++;
+                }
+                invokeAll(new Task(buckets, from, middle), new Task(buckets, middle, to));
+            }
+        }
+    }
+
+    /**
+     * Compares the rows from (included) to to (excluded) of a large bucket with the rows after
+     * them.
+     */
+    private static class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Buckets buckets;
+        private final int bucket;
+        private final int from;
+        private final int to;
+
+        RowTask(Buckets buckets, int bucket, int from, int to) {
+            this.buckets = buckets;
+            this.bucket = bucket;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            long end = buckets.starts[bucket + 1];
+            if (to - from == 1 || (to - from) * (end - from) <= 2 * GRAIN) {
+                buckets.compareRows(bucket, from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RowTask(buckets, bucket, from, middle), new RowTask(buckets, bucket, middle, to));
+            }
+        }
+    }
+
+    private class QueryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final MultiIndexHash index;
+        private final int radius;
+        private final int from;
+        private final int to;
+
+        QueryTask(MultiIndexHash index, int radius, int from, int to) {
+            this.index = index;
+            this.radius = radius;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= QUERY_GRAIN) {
+                query(index, radius, from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new QueryTask(index, radius, from, middle), new QueryTask(index, radius, middle, to));
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package net.internetmemory.simhash;
+
+/**
+ * Hashes the shingles of a stream of tokens in O(1) per token, whatever the window size. The
+ * last windowSize token hashes are kept in a ring buffer and the hash of the window is a
+ * polynomial of them, updated by removing the oldest token and adding the new one (Rabin-Karp),
+ * then finished with the finalizer of MurmurHash3. Unlike {@link Shingles#build(java.util.List, int)},
+ * every window is hashed, including the last one.
+ *
+ * Not thread-safe.
+ */
+public class RollingShingleHash {
+    // odd, so the powers are never 0 modulo 2^64
+    private static final long BASE = 0x9e3779b97f4a7c15L;
+
+    private final int windowSize;
+    private final long[] window;
+    // BASE^(windowSize - 1), the factor of the oldest token
+    private final long oldestFactor;
+    private int nrTokens = 0;
+    private int pos = 0;
+    private long hash = 0;
+
+    public RollingShingleHash(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be positive: " + windowSize);
+        }
+        this.windowSize = windowSize;
+        this.window = new long[windowSize];
+        long f = 1;
+        for (int i = 1; i < windowSize; i++) {
+            f *= BASE;
+        }
+        this.oldestFactor = f;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Starts a new stream of tokens.
+     */
+    public void reset() {
+        nrTokens = 0;
+        pos = 0;
+        hash = 0;
+    }
+
+    /**
+     * Adds the next token of the stream.
+     *
+     * @param tokenHash hash of the token, e.g. String.hashCode()
+     * @return true if the window is full, i.e. {@link #hash()} is the hash of a shingle
+     */
+    public boolean add(int tokenHash) {
+        // the tokens are spread over 64 bits first, the polynomial alone mixes the bits poorly
+        long t = fmix64(tokenHash & 0xffffffffL);
+        if (nrTokens >= windowSize) {
+            hash -= window[pos] * oldestFactor;
+        } else {
+            nrTokens++;
+        }
+        hash = hash * BASE + t;
+        window[pos] = t;
+        pos = pos + 1 == windowSize ? 0 : pos + 1;
+        return nrTokens == windowSize;
+    }
+
+    /**
+     * @return the hash of the last windowSize tokens
+     */
+    public long hash() {
+        return fmix64(hash);
+    }
+
+    static long fmix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
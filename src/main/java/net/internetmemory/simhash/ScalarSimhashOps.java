@@ -0,0 +1,32 @@
+package net.internetmemory.simhash;
+
+/**
+ * {@link SimhashOps} with plain loops and Long.bitCount.
+ */
+class ScalarSimhashOps extends SimhashOps {
+    static final ScalarSimhashOps INSTANCE = new ScalarSimhashOps();
+
+    @Override
+    public String name() {
+        return "scalar";
+    }
+
+    @Override
+    public void accumulate(long[] hashes, int n, int[] ones, int offset) {
+        for (int i = 0; i < n; i++) {
+            Simhash.accumulate(hashes[i], ones, offset);
+        }
+    }
+
+    @Override
+    public void distances(long[] query, int queryOffset, int words, long[] block, int nrFingerprints,
+                          int[] distances) {
+        for (int f = 0; f < nrFingerprints; f++) {
+            int d = 0;
+            for (int w = 0; w < words; w++) {
+                d += Long.bitCount(query[queryOffset + w] ^ block[f * words + w]);
+            }
+            distances[f] = d;
+        }
+    }
+}
@@ -9,11 +9,21 @@ public class Shingles {
      * Builds a set of shingles for a given list.
      *
      * Essentially it goes with a fixed size window through a given list and it builds a set
-     * of all possible n-grams.
+     * of all possible n-grams, but the last one (as PLAIN_TEXT_SHINGLE3_V1 and V2 do).
      */
     public static <E> Set<List<E>> build(List<E> din, int windowSize) {
+        return build(din, windowSize, false);
+    }
+
+    /**
+     * Builds a set of shingles for a given list.
+     *
+     * @param lastWindow true to take the last n-gram too (as PLAIN_TEXT_SHINGLE3_V3 does)
+     */
+    public static <E> Set<List<E>> build(List<E> din, int windowSize, boolean lastWindow) {
         Set<List<E>> result = new HashSet<>();
-        for (int from = 0; from < din.size() - windowSize; from++) {
+        int end = lastWindow ? din.size() - windowSize + 1 : din.size() - windowSize;
+        for (int from = 0; from < end; from++) {
             int to = from + windowSize;
             result.add(din.subList(from, to));
         }
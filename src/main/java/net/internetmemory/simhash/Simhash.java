@@ -8,29 +8,46 @@ public class Simhash {
      * Long hashes should be produced by some other means.
      */
     public static long calculate(Set<Long> hashes) {
-        long[] v = new long[64];
-        for (int i = 0; i < v.length; i++) {
-            v[i] = 0;
-        }
+        int[] ones = new int[64];
         for (Long hash : hashes) {
-            long current = hash;
-            for (int bit = 0; bit < 64; bit++) {
-                if ((current & 1) == 0) {
-                    v[bit] += 1;
-                } else {
-                    v[bit] -= 1;
-                }
-                current >>>= 1;
-            }
+            accumulate(hash, ones);
         }
+        return fromCounts(ones, hashes.size());
+    }
+
+    /**
+     * Adds the bits of a hash to the counts of 1 bits of each position, without a branch per bit.
+     */
+    static void accumulate(long hash, int[] ones) {
+        accumulate(hash, ones, 0);
+    }
+
+    /**
+     * Same as {@link #accumulate(long, int[])} on the counts ones[offset, offset + 64).
+     */
+    static void accumulate(long hash, int[] ones, int offset) {
+        for (int bit = 0; bit < 64; bit++) {
+            ones[offset + bit] += (int) ((hash >>> bit) & 1);
+        }
+    }
+
+    /**
+     * Builds the simhash of n hashes from the counts of 1 bits of each position: the bit is set
+     * when there are more 0s than 1s at its position, and the bits are in reverse order (the
+     * position 0 is the highest bit).
+     */
+    static long fromCounts(int[] ones, int n) {
+        return fromCounts(ones, 0, n);
+    }
+
+    /**
+     * Same as {@link #fromCounts(int[], int)} on the counts ones[offset, offset + 64).
+     */
+    static long fromCounts(int[] ones, int offset, int n) {
         long hashValue = 0;
         for (int bit = 0; bit < 64; bit++) {
-            if (v[bit] > 0) {
-                hashValue |= 1;
-            }
-            if (bit != 63) {
-                hashValue <<= 1;
-            }
+            // the sign bit of 2 * ones - n is 1 when 0s are more frequent than 1s
+            hashValue |= ((2L * ones[offset + bit] - n) >>> 63) << (63 - bit);
         }
         return hashValue;
     }
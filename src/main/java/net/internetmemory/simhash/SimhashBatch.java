@@ -0,0 +1,158 @@
+package net.internetmemory.simhash;
+
+import net.internetmemory.utils.HtmlUtils;
+import net.internetmemory.utils.NodeVisitor;
+import org.w3c.dom.Document;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fingerprints of many documents, texts or HTML payloads, written to an array supplied by the
+ * caller: the words of the fingerprint of item i are out[i * words, (i + 1) * words), words
+ * being {@link SimhashFingerprint.Algorithm#words()}. The tokenizer, the kernel and the visitor
+ * of each thread are reused for all its items, no fingerprint object is created. With a
+ * ForkJoinPool, the items are split between its workers, otherwise they are fingerprinted by
+ * the calling thread; the fingerprints are the same.
+ *
+ * An item which can not be fingerprinted (a payload which can not be parsed...) gets a zero
+ * fingerprint and its number is set in the returned BitSet.
+ */
+public class SimhashBatch {
+    // items fingerprinted by a task without splitting it
+    private static final int GRAIN = 16;
+
+    // visitors of the calling thread, by algorithm, reused between the documents
+    private static final ThreadLocal<NodeVisitor[]> visitors =
+            ThreadLocal.withInitial(() -> new NodeVisitor[SimhashFingerprint.Algorithm.values().length]);
+
+    private final SimhashFingerprint.Algorithm algorithm;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param pool pool of the workers, null to fingerprint in the calling thread
+     */
+    public SimhashBatch(SimhashFingerprint.Algorithm algorithm, ForkJoinPool pool) {
+        this.algorithm = algorithm;
+        this.pool = pool;
+    }
+
+    public SimhashBatch(SimhashFingerprint.Algorithm algorithm) {
+        this(algorithm, null);
+    }
+
+    /**
+     * Fingerprint of item i, written to out[i * words, (i + 1) * words).
+     */
+    private interface Item {
+        void fingerprint(int i, long[] out) throws Exception;
+    }
+
+    /**
+     * Fingerprints of documents, as {@link SimhashFingerprint#calculate(Document, SimhashFingerprint.Algorithm)}.
+     */
+    public BitSet calculate(List<? extends Document> documents, long[] out) {
+        return run(documents.size(), out, (i, o) -> copy(algorithm.calculateHash(traverse(documents.get(i))), i, o));
+    }
+
+    /**
+     * Fingerprints of texts, as {@link SimhashFingerprint#calculate(String, SimhashFingerprint.Algorithm)}.
+     */
+    public BitSet calculateTexts(List<String> texts, long[] out) {
+        return run(texts.size(), out, (i, o) -> copy(algorithm.calculateHash(texts.get(i)), i, o));
+    }
+
+    /**
+     * Fingerprints of HTML payloads, parsed and cleaned as the pages of the hash files.
+     *
+     * @param payloads the payloads, without HTTP header
+     * @param urls the URLs of the payloads, to resolve their links
+     */
+    public BitSet calculatePayloads(List<byte[]> payloads, List<String> urls, long[] out) {
+        return run(payloads.size(), out, (i, o) -> {
+            byte[] payload = payloads.get(i);
+            String encoding = HtmlUtils.detectEncoding(payload);
+            Document document = HtmlUtils.Jsoup.cleanAndParseStable(payload, urls.get(i), encoding, true);
+            copy(algorithm.calculateHash(traverse(document)), i, o);
+        });
+    }
+
+    /**
+     * Traverses a document with the visitor of the algorithm of the calling thread.
+     */
+    private NodeVisitor traverse(Document document) {
+        NodeVisitor[] vs = visitors.get();
+        NodeVisitor visitor = vs[algorithm.ordinal()];
+        if (visitor == null) {
+            visitor = algorithm.visitor();
+            vs[algorithm.ordinal()] = visitor;
+        }
+        visitor.init();
+        SimhashFingerprint.traverse(visitor, document);
+        return visitor;
+    }
+
+    private void copy(long[] fingerprint, int i, long[] out) {
+        System.arraycopy(fingerprint, 0, out, i * algorithm.words(), algorithm.words());
+    }
+
+    private BitSet run(int n, long[] out, Item item) {
+        if (out.length < n * algorithm.words()) {
+            throw new IllegalArgumentException("The output has " + out.length + " longs, "
+                    + n * algorithm.words() + " are needed");
+        }
+        BitSet failed = new BitSet();
+        if (pool == null) {
+            fingerprint(0, n, out, item, failed);
+        } else {
+            pool.invoke(new Task(0, n, out, item, failed));
+        }
+        return failed;
+    }
+
+    private void fingerprint(int from, int to, long[] out, Item item, BitSet failed) {
+        for (int i = from; i < to; i++) {
+            try {
+                item.fingerprint(i, out);
+            } catch (Exception e) {
+                System.err.println("Could not fingerprint item " + i + ": " + e);
+                for (int w = 0; w < algorithm.words(); w++) {
+                    out[i * algorithm.words() + w] = 0;
+                }
+                synchronized (failed) {
+                    failed.set(i);
+                }
+            }
+        }
+    }
+
+    private class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final long[] out;
+        private final Item item;
+        private final BitSet failed;
+
+        Task(int from, int to, long[] out, Item item, BitSet failed) {
+            this.from = from;
+            this.to = to;
+            this.out = out;
+            this.item = item;
+            this.failed = failed;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= GRAIN) {
+                fingerprint(from, to, out, item, failed);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Task(from, middle, out, item, failed), new Task(middle, to, out, item, failed));
+            }
+        }
+    }
+}
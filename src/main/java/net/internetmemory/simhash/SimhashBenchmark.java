@@ -0,0 +1,195 @@
+package net.internetmemory.simhash;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * Measures the time per token of the shingle simhash, with the sets of
+ * {@link TextSimhash#calculateWithSets(List)} and with {@link SimhashKernel}, and checks that
+ * both give the same simhashes, and of the shingle hashes of PLAIN_TEXT_SHINGLE3_V2 and V3. It also
+ * checks that {@link TokenHasher} gives the terms of SimhashFingerprint.tokenize and measures the
+ * tokenization with both, the operations of {@link SimhashOps} and the {@link SimhashBatch} of
+ * V3. Each line of the input file is a document, its tokens are separated by white spaces.
+ */
+public class SimhashBenchmark {
+    public static void run(String fn, int rounds, PrintStream out) throws IOException {
+        List<List<String>> docs = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(fn))) {
+            docs.add(Arrays.stream(line.toLowerCase().split("\\s+"))
+                    .filter(t -> !t.isEmpty())
+                    .collect(Collectors.toList()));
+        }
+        long nrTokens = docs.stream().mapToLong(List::size).sum();
+        TextSimhash textSimhash = new TextSimhash(3);
+        SimhashKernel kernel = SimhashKernel.get();
+
+        int mismatches = 0;
+        int shingleMismatches = 0;
+        RollingShingleHash rolling = new RollingShingleHash(3);
+        LongOpenHashSet rollingHashes = new LongOpenHashSet();
+        for (List<String> doc : docs) {
+            if (textSimhash.calculateWithSets(doc) != kernel.calculate(doc, 3)) {
+                mismatches++;
+            }
+            // the rolling hashes must not collide and must take all the windows
+            rolling.reset();
+            rollingHashes.clear();
+            for (String token : doc) {
+                if (rolling.add(token.hashCode())) {
+                    rollingHashes.add(rolling.hash());
+                }
+            }
+            if (rollingHashes.size() != Shingles.build(doc, 3, true).size()) {
+                shingleMismatches++;
+            }
+        }
+        out.println("documents:" + "\t" + docs.size());
+        out.println("tokens:" + "\t" + nrTokens);
+        out.println("different simhashes:" + "\t" + mismatches);
+        out.println("different numbers of rolling shingles:" + "\t" + shingleMismatches);
+
+        // the lines tokenized as the pages are, into lists of Strings or streamed
+        List<String> lines = Files.readAllLines(Paths.get(fn));
+        IntArrayList streamed = new IntArrayList();
+        int tokenMismatches = 0;
+        for (String line : lines) {
+            streamed.clear();
+            TokenHasher.get().hash(streamed::add, line);
+            List<String> terms = SimhashFingerprint.tokenize(line);
+            boolean same = streamed.size() == terms.size();
+            for (int i = 0; same && i < terms.size(); i++) {
+                same = streamed.getInt(i) == terms.get(i).hashCode();
+            }
+            if (!same) {
+                tokenMismatches++;
+            }
+        }
+        out.println("different streamed tokens:" + "\t" + tokenMismatches);
+
+        // the batches, in the calling thread or in a pool, give the fingerprints of the single calls
+        SimhashFingerprint.Algorithm v3 = SimhashFingerprint.Algorithm.PLAIN_TEXT_SHINGLE3_V3;
+        SimhashBatch sequential = new SimhashBatch(v3);
+        SimhashBatch parallel = new SimhashBatch(v3, ForkJoinPool.commonPool());
+        long[] batch = new long[lines.size()];
+        long[] parallelBatch = new long[lines.size()];
+        sequential.calculateTexts(lines, batch);
+        parallel.calculateTexts(lines, parallelBatch);
+        int batchMismatches = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            long single = v3.calculateHash(lines.get(i))[0];
+            if (batch[i] != single || parallelBatch[i] != single) {
+                batchMismatches++;
+            }
+        }
+        out.println("different batch simhashes:" + "\t" + batchMismatches);
+
+        long sink = 0;
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            for (String line : lines) {
+                sink += textSimhash.calculate(SimhashFingerprint.tokenize(line));
+            }
+            long lists = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (String line : lines) {
+                sink += SimhashFingerprint.Algorithm.PLAIN_TEXT_SHINGLE3_V1.calculateHash(line)[0];
+            }
+            long streaming = System.nanoTime() - start;
+            out.println("round " + r
+                    + "\t" + "tokenize+V1 ns/token:" + String.format("%.1f", (double) lists / Math.max(nrTokens, 1))
+                    + "\t" + "streamed V1 ns/token:" + String.format("%.1f", (double) streaming / Math.max(nrTokens, 1)));
+        }
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            for (String line : lines) {
+                sink += SimhashFingerprint.calculate(line, v3).simhash()[0];
+            }
+            long single = System.nanoTime() - start;
+            start = System.nanoTime();
+            sequential.calculateTexts(lines, batch);
+            long sequentialTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            parallel.calculateTexts(lines, parallelBatch);
+            long parallelTime = System.nanoTime() - start;
+            sink += batch[0] + parallelBatch[0];
+            out.println("round " + r
+                    + "\t" + "single V3 ns/token:" + String.format("%.1f", (double) single / Math.max(nrTokens, 1))
+                    + "\t" + "batch V3 ns/token:" + String.format("%.1f", (double) sequentialTime / Math.max(nrTokens, 1))
+                    + "\t" + "parallel batch V3 ns/token:"
+                    + String.format("%.1f", (double) parallelTime / Math.max(nrTokens, 1)));
+        }
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            for (List<String> doc : docs) {
+                sink += textSimhash.calculateWithSets(doc);
+            }
+            long sets = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (List<String> doc : docs) {
+                sink += kernel.calculate(doc, 3);
+            }
+            long primitive = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (List<String> doc : docs) {
+                sink += kernel.calculateFast(doc, 3);
+            }
+            long fast = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (List<String> doc : docs) {
+                sink += kernel.calculateRolling(doc, 3);
+            }
+            long rollingTime = System.nanoTime() - start;
+            out.println("round " + r
+                    + "\t" + "sets ns/token:" + String.format("%.1f", (double) sets / Math.max(nrTokens, 1))
+                    + "\t" + "kernel ns/token:" + String.format("%.1f", (double) primitive / Math.max(nrTokens, 1))
+                    + "\t" + "V2 ns/token:" + String.format("%.1f", (double) fast / Math.max(nrTokens, 1))
+                    + "\t" + "V3 ns/token:" + String.format("%.1f", (double) rollingTime / Math.max(nrTokens, 1)));
+        }
+        // accumulation and distances, with the scalar and the selected implementations
+        SimhashOps scalar = SimhashOps.scalar();
+        SimhashOps ops = SimhashOps.get();
+        out.println("simhash operations:" + "\t" + ops.name());
+        long[] block = new long[1 << 16];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = RollingShingleHash.fmix64(i);
+        }
+        int[] ones = new int[64];
+        int[] distances = new int[block.length];
+        for (int r = 0; r < rounds; r++) {
+            StringBuilder sb = new StringBuilder("round " + r);
+            for (SimhashOps o : Arrays.asList(scalar, ops)) {
+                long start = System.nanoTime();
+                for (int i = 0; i < 16; i++) {
+                    o.accumulate(block, block.length, ones, 0);
+                }
+                long accumulation = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < 256; i++) {
+                    o.distances(block, i, 1, block, block.length, distances);
+                    sink += distances[i];
+                }
+                long distance = System.nanoTime() - start;
+                sb.append("\t").append(o.name()).append(" accumulate ns/hash:")
+                        .append(String.format("%.2f", (double) accumulation / (16L * block.length)))
+                        .append("\t").append(o.name()).append(" distance ns/fingerprint:")
+                        .append(String.format("%.2f", (double) distance / (256L * block.length)));
+            }
+            out.println(sb);
+        }
+
+        // keeps the JIT from removing the loops
+        if (sink == 42) {
+            out.println();
+        }
+    }
+}
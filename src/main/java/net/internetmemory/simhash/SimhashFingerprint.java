@@ -1,6 +1,7 @@
 package net.internetmemory.simhash;
 
 import com.google.common.base.Preconditions;
+import net.internetmemory.utils.NodeVisitor;
 import net.internetmemory.utils.NodeVisitorUtils;
 import net.internetmemory.utils.TextExtractionVisitor;
 import org.apache.lucene.analysis.Tokenizer;
@@ -25,37 +26,311 @@ import java.util.List;
 public class SimhashFingerprint {
     public static class Error extends RuntimeException {}
 
-    public enum Algorithm {
-        PLAIN_TEXT_SHINGLE3_V1 {
-            @Override
-            long[] calculateHash(Document document) {
-                Node node = document.getDocumentElement();
-                TextExtractionVisitor visitor = new TextExtractionVisitor();
-                boolean result = NodeVisitorUtils.traverseNodes(visitor, node);
-                if (!result) {
-                    throw new Error();
+    /**
+     * What a fingerprint is calculated from and how: a text {@link Algorithm} or a {@link Structure}.
+     * Only the fingerprints of the same type are comparable.
+     */
+    public interface Type {
+        String name();
+
+        /**
+         * @return the key of the fingerprints in the hash files
+         */
+        String key();
+
+        /**
+         * @return the number of longs of the fingerprints
+         */
+        int words();
+    }
+
+    /**
+     * Structural fingerprints, calculated from the elements of a document only, see
+     * {@link #calculateWithStructure(Document, Algorithm)}.
+     */
+    public enum Structure implements Type {
+        /**
+         * Tag paths and class tokens of the elements of a page, see {@link StructureVisitor}: a
+         * fingerprint of the layout of the page, not of its text.
+         */
+        STRUCTURE_TAG_PATH_V1("structhash_v1", 1);
+
+        private final String key;
+        private final int words;
+
+        Structure(String key, int words) {
+            this.key = key;
+            this.words = words;
+        }
+
+        @Override
+        public String key() {
+            return key;
+        }
+
+        @Override
+        public int words() {
+            return words;
+        }
+
+        /**
+         * @return the structural fingerprint of a key of the hash files, or null
+         */
+        public static Structure forKey(String key) {
+            for (Structure s : values()) {
+                if (s.key().equals(key)) {
+                    return s;
                 }
-                List<String> tokens = tokenize(visitor.getTitle());
-                tokens.addAll(tokenize(visitor.getBody()));
+            }
+            return null;
+        }
+    }
 
+    /**
+     * Text fingerprints, calculated from the text of a document or from plain texts.
+     */
+    public enum Algorithm implements Type {
+        /**
+         * Shingles of 3 tokens hashed with MD5.
+         */
+        PLAIN_TEXT_SHINGLE3_V1("simhash_v1_3", 1) {
+            @Override
+            long[] calculateHash(List<String> tokens) {
                 return new long[] { new TextSimhash(3).calculate(tokens) };
             }
+
+            @Override
+            long[] calculateHash(String... texts) {
+                SimhashKernel kernel = SimhashKernel.get();
+                kernel.clearTokens();
+                TokenHasher.get().hash(kernel::addToken, texts);
+                return new long[] { kernel.calculateBuffered(3) };
+            }
+
+            @Override
+            public boolean keepsShingles() {
+                return false;
+            }
+        },
+        /**
+         * Same shingles as V1, hashed with a 64 bits mixing function instead of MD5, see
+         * {@link SimhashKernel#fastShingleHash(int[], int, int)}. The fingerprints are not
+         * comparable with the V1 ones.
+         */
+        PLAIN_TEXT_SHINGLE3_V2("simhash_v2_3", 1) {
+            @Override
+            long[] calculateHash(List<String> tokens) {
+                return new long[] { SimhashKernel.get().calculateFast(tokens, 3) };
+            }
+
+            @Override
+            long[] calculateHash(String... texts) {
+                SimhashKernel kernel = SimhashKernel.get();
+                kernel.clearTokens();
+                TokenHasher.get().hash(kernel::addToken, texts);
+                return new long[] { kernel.calculateFastBuffered(3) };
+            }
+
+            @Override
+            public boolean keepsShingles() {
+                return false;
+            }
+        },
+        /**
+         * All the shingles of 3 tokens, including the last one which V1 and V2 skip, hashed
+         * with a {@link RollingShingleHash}.
+         */
+        PLAIN_TEXT_SHINGLE3_V3("simhash_v3_3", 1),
+        /**
+         * Same shingles and shingle hashes as V3, with a simhash of 128 bits.
+         */
+        PLAIN_TEXT_SHINGLE3_V3_128("simhash_v3_3_128", 2),
+        /**
+         * Same shingles and shingle hashes as V3, with a simhash of 256 bits.
+         */
+        PLAIN_TEXT_SHINGLE3_V3_256("simhash_v3_3_256", 4),
+        /**
+         * Shingles of V3 weighted by the position of their tokens in the page, see
+         * {@link WeightedTextVisitor}, calculated in the traversal of the page. The boilerplate
+         * weighs less, so there is no separate simhash of the main text.
+         */
+        WEIGHTED_TEXT_SHINGLE3_V1("wsimhash_v1_3", 1) {
+            @Override
+            NodeVisitor visitor() {
+                return new WeightedTextVisitor(WeightedSimhash.get());
+            }
+
+            @Override
+            long[] calculateHash(NodeVisitor visitor) {
+                return new long[] { WeightedSimhash.get().end() };
+            }
+
+            @Override
+            long[] calculateHash(List<String> tokens) {
+                WeightedSimhash simhash = WeightedSimhash.get();
+                simhash.begin();
+                for (String token : tokens) {
+                    simhash.add(token.hashCode(), 1f);
+                }
+                return new long[] { simhash.end() };
+            }
+
+            @Override
+            long[] calculateHash(String... texts) {
+                WeightedSimhash simhash = WeightedSimhash.get();
+                simhash.begin();
+                TokenHasher.get().hash(h -> simhash.add(h, 1f), texts);
+                return new long[] { simhash.end() };
+            }
+
+            @Override
+            public boolean hasMainText() {
+                return false;
+            }
+
+            @Override
+            public boolean keepsShingles() {
+                return false;
+            }
         };
 
+        private final String key;
+        private final int words;
+
+        Algorithm(String key, int words) {
+            this.key = key;
+            this.words = words;
+        }
+
+        /**
+         * @return true if a simhash of the main text of the pages is calculated with this
+         * algorithm, besides the simhash of the page
+         */
+        public boolean hasMainText() {
+            return true;
+        }
+
+        /**
+         * @return true if the shingles of the last calculation stay in {@link SimhashKernel#shingles()},
+         * i.e. the shingles of V3, so a {@link MinHash} can reuse them
+         */
+        public boolean keepsShingles() {
+            return true;
+        }
+
+        @Override
+        public int words() {
+            return words;
+        }
+
+        /**
+         * @return the key of the page simhash in the hash files
+         */
+        @Override
+        public String key() {
+            return key;
+        }
+
+        /**
+         * @return the key of the main text simhash in the hash files
+         */
+        public String mainTextKey() {
+            return key + "_snacktory";
+        }
+
+        /**
+         * @return the algorithm of a key of the hash files, page or main text simhash, or null
+         */
+        public static Algorithm forKey(String key) {
+            for (Algorithm a : values()) {
+                if (a.key().equals(key) || a.mainTextKey().equals(key)) {
+                    return a;
+                }
+            }
+            return null;
+        }
+
         /**
          * Calculates an actual fingerprint
          *
          * @param document source document
          * @return fingeprint
          */
-        abstract long[] calculateHash(Document document);
+        long[] calculateHash(Document document) {
+            NodeVisitor visitor = visitor();
+            traverse(visitor, document);
+            return calculateHash(visitor);
+        }
+
+        /**
+         * @return a visitor collecting what the fingerprints are calculated from, the text by default
+         */
+        NodeVisitor visitor() {
+            return new TextExtractionVisitor();
+        }
+
+        /**
+         * Calculates a fingerprint from a visitor of {@link #visitor()} which traversed a page.
+         */
+        long[] calculateHash(NodeVisitor visitor) {
+            TextExtractionVisitor text = (TextExtractionVisitor) visitor;
+            return calculateHash(text.getTitle(), text.getBody());
+        }
+
+        /**
+         * Calculates a fingerprint from tokens in lower case. The default is the rolling
+         * simhash of V3, on {@link #words()} longs.
+         */
+        long[] calculateHash(List<String> tokens) {
+            return new TextSimhash(3).calculateRolling(tokens, words);
+        }
+
+        /**
+         * Calculates a fingerprint from the tokens of the texts, streamed by {@link TokenHasher}:
+         * the same as {@link #calculateHash(List)} on the tokenized texts.
+         */
+        long[] calculateHash(String... texts) {
+            SimhashKernel kernel = SimhashKernel.get();
+            kernel.begin(3);
+            TokenHasher.get().hash(kernel::add, texts);
+            return kernel.end(words);
+        }
+    }
+
+    static void traverse(NodeVisitor visitor, Document document) {
+        Node node = document.getDocumentElement();
+        boolean result = NodeVisitorUtils.traverseNodes(visitor, node);
+        if (!result) {
+            throw new Error();
+        }
+    }
+
+    /**
+     * @return the type of a key of the hash files, text algorithm (page or main text simhash) or
+     * structure, or null
+     */
+    public static Type forKey(String key) {
+        Algorithm a = Algorithm.forKey(key);
+        return a != null ? a : Structure.forKey(key);
     }
 
-    private final String algorithm;
+    /**
+     * @return the type of the given name, as returned by {@link #algorithm()}
+     */
+    public static Type valueOf(String name) {
+        for (Structure s : Structure.values()) {
+            if (s.name().equals(name)) {
+                return s;
+            }
+        }
+        return Algorithm.valueOf(name);
+    }
+
+    private final Type algorithm;
     private final long[] simhash;
 
-    public SimhashFingerprint(Algorithm algorithm, long[] simhash) {
-        this.algorithm = algorithm.name();
+    public SimhashFingerprint(Type algorithm, long[] simhash) {
+        this.algorithm = algorithm;
         this.simhash = simhash;
     }
 
@@ -67,12 +342,31 @@ public class SimhashFingerprint {
     /**
      * @return fingerprint size (bits)
      */
-    public int size() { return 64; }
+    public int size() { return 64 * simhash.length; }
+
+    /**
+     * @return true if all the bits are 0, e.g. the fingerprint of an empty text
+     */
+    public boolean isZero() {
+        for (long word : simhash) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
 
     /**
      * @return an algorithm that's been used to calculate the fingerprint
      */
-    public String algorithm() { return algorithm; }
+    public String algorithm() { return algorithm.name(); }
+
+    /**
+     * @return the text algorithm of the fingerprint, null for a structural fingerprint
+     */
+    public Algorithm getAlgorithm() { return algorithm instanceof Algorithm ? (Algorithm) algorithm : null; }
+
+    public Type getType() { return algorithm; }
 
     /**
      * Measures distance between fingerprints. Two fingerprints must be comparable, i.e.
@@ -83,15 +377,33 @@ public class SimhashFingerprint {
      */
     public int distance(SimhashFingerprint other) {
         Preconditions.checkArgument(other.algorithm == algorithm,
-                "Fingerprints have different algorithms and therefore " +
-                        "distance can not be measured.");
+                "Fingerprints have different algorithms (%s and %s) and therefore " +
+                        "distance can not be measured.", algorithm, other.algorithm);
         Preconditions.checkArgument(simhash.length == other.simhash.length,
                 "Fingerprints have different size.");
 
-        Preconditions.checkState(simhash.length == 1,
-                "Fingerprints with lengths other than 64 bits are not supported for now");
+        int distance = 0;
+        for (int i = 0; i < simhash.length; i++) {
+            distance += Long.bitCount(simhash[i] ^ other.simhash[i]);
+        }
+        return distance;
+    }
 
-        return Long.bitCount(simhash[0] ^ other.simhash[0]);
+    /**
+     * Parses a fingerprint written by {@link #toString()}.
+     *
+     * @param algorithm the algorithm of the fingerprint
+     * @param s the words of the fingerprint, separated by commas
+     */
+    public static SimhashFingerprint parse(Type algorithm, String s) {
+        String[] words = s.split(",");
+        Preconditions.checkArgument(words.length == algorithm.words(),
+                "%s fingerprints have %s words: %s", algorithm, algorithm.words(), s);
+        long[] simhash = new long[words.length];
+        for (int i = 0; i < words.length; i++) {
+            simhash[i] = Long.parseLong(words[i]);
+        }
+        return new SimhashFingerprint(algorithm, simhash);
     }
 
     /**
@@ -105,6 +417,21 @@ public class SimhashFingerprint {
         return new SimhashFingerprint(algorithm, algorithm.calculateHash(document));
     }
 
+    /**
+     * Calculates the fingerprint of a document with a given algorithm and its structural
+     * fingerprint ({@link Structure#STRUCTURE_TAG_PATH_V1}) in the same traversal of the document.
+     *
+     * @return the fingerprint of the algorithm and the structural fingerprint
+     */
+    public static SimhashFingerprint[] calculateWithStructure(Document document, Algorithm algorithm) {
+        StructureVisitor visitor = new StructureVisitor(algorithm.visitor());
+        traverse(visitor, document);
+        return new SimhashFingerprint[] {
+                new SimhashFingerprint(algorithm, algorithm.calculateHash(visitor.getDelegate())),
+                new SimhashFingerprint(Structure.STRUCTURE_TAG_PATH_V1, new long[] { visitor.simhash() })
+        };
+    }
+
     /**
      * Calculates fingerprint from a given document using a given algorithm
      *
@@ -115,7 +442,32 @@ public class SimhashFingerprint {
         return calculate(document, Algorithm.PLAIN_TEXT_SHINGLE3_V1);
     }
 
-    private static List<String> tokenize(String str) {
+    /**
+     * Calculates fingerprint from a plain text (e.g. the main text extracted by snacktory)
+     *
+     * @param text a text to build a fingerprint from
+     * @return a calculated fingerprint
+     */
+    public static SimhashFingerprint calculate(String text) {
+        return calculate(text, Algorithm.PLAIN_TEXT_SHINGLE3_V1);
+    }
+
+    /**
+     * Calculates fingerprint from a plain text using a given algorithm
+     *
+     * @param text a text to build a fingerprint from
+     * @param algorithm an algorithm to use
+     * @return a calculated fingerprint
+     */
+    public static SimhashFingerprint calculate(String text, Algorithm algorithm) {
+        return new SimhashFingerprint(algorithm, algorithm.calculateHash(text));
+    }
+
+    /**
+     * Tokenizes a text into a list of terms in lower case. The fingerprints are calculated
+     * with {@link TokenHasher}, which gives the hash codes of the same terms.
+     */
+    static List<String> tokenize(String str) {
         Tokenizer tokenizer = new ICUTokenizer(new StringReader(str));
         CharTermAttribute charTermAttribute1 = tokenizer.addAttribute(CharTermAttribute.class);
 
@@ -135,8 +487,21 @@ public class SimhashFingerprint {
         return result;
     }
 
+    /**
+     * @return the words of the fingerprint as signed longs, separated by commas
+     */
     @Override
     public String toString() {
-        return Long.toString(simhash[0]);
+        if (simhash.length == 1) {
+            return Long.toString(simhash[0]);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < simhash.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(simhash[i]);
+        }
+        return sb.toString();
     }
 }
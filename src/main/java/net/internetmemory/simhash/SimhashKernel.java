@@ -0,0 +1,298 @@
+package net.internetmemory.simhash;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Primitive version of {@link TextSimhash}: the shingle hashes are calculated from the hash
+ * codes of the tokens, deduplicated in a set of longs and accumulated in bit counters, all
+ * reused between the calls. The results are the same as TextSimhash (and so as
+ * PLAIN_TEXT_SHINGLE3_V1): like {@link Shingles#build(List, int)}, the last window of tokens
+ * is not taken. {@link #calculateFast(List, int)} calculates PLAIN_TEXT_SHINGLE3_V2 the same way
+ * with another shingle hash. {@link #calculateRolling(List, int)} (PLAIN_TEXT_SHINGLE3_V3) takes
+ * all the windows and hashes them with a {@link RollingShingleHash}, also token by token
+ * with {@link #begin(int)}, {@link #add(int)} and {@link #end()}, or {@link #end(int)} for
+ * simhashes of 128 or 256 bits.
+ *
+ * A kernel is not thread-safe, {@link #get()} returns the kernel of the calling thread.
+ */
+public class SimhashKernel {
+    private static final ThreadLocal<SimhashKernel> kernels = ThreadLocal.withInitial(SimhashKernel::new);
+
+    // a set larger than this is not kept between two calls
+    private static final int MAX_KEPT_SIZE = 1 << 16;
+
+    // multipliers of MurmurHash3 (x64, 128 bits)
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final MessageDigest md;
+    private final byte[] digest = new byte[16];
+    private byte[] shingle = new byte[12];
+    private int[] tokenHashes = new int[1024];
+    private int nrTokens = 0;
+    private final LongOpenHashSet hashes = new LongOpenHashSet();
+    private final int[] ones = new int[64];
+    private int[] wideOnes = new int[256];
+    private long[] distinct = new long[1024];
+    private long[] mixed = new long[1024];
+    private final SimhashOps ops = SimhashOps.get();
+    private RollingShingleHash rolling;
+
+    public SimhashKernel() {
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the kernel of the calling thread
+     */
+    public static SimhashKernel get() {
+        return kernels.get();
+    }
+
+    /**
+     * Same as {@link TextSimhash#calculate(List)}.
+     */
+    public long calculate(List<String> tokens, int windowSize) {
+        int n = fillTokenHashes(tokens);
+        return calculate(tokenHashes, n, windowSize);
+    }
+
+    private int fillTokenHashes(List<String> tokens) {
+        clearTokens();
+        for (int i = 0; i < tokens.size(); i++) {
+            addToken(tokens.get(i).hashCode());
+        }
+        return nrTokens;
+    }
+
+    /**
+     * Empties the tokens buffered by {@link #addToken(int)}.
+     */
+    public void clearTokens() {
+        nrTokens = 0;
+    }
+
+    /**
+     * Buffers the hash code of the next token, for {@link #calculateBuffered(int)} or
+     * {@link #calculateFastBuffered(int)}.
+     */
+    public void addToken(int tokenHash) {
+        if (nrTokens == tokenHashes.length) {
+            tokenHashes = Arrays.copyOf(tokenHashes, 2 * nrTokens);
+        }
+        tokenHashes[nrTokens++] = tokenHash;
+    }
+
+    /**
+     * Same as {@link #calculate(List, int)} on the buffered tokens.
+     */
+    public long calculateBuffered(int windowSize) {
+        return calculate(tokenHashes, nrTokens, windowSize);
+    }
+
+    /**
+     * Same as {@link #calculateFast(List, int)} on the buffered tokens.
+     */
+    public long calculateFastBuffered(int windowSize) {
+        clearHashes();
+        for (int from = 0; from < nrTokens - windowSize; from++) {
+            hashes.add(fastShingleHash(tokenHashes, from, windowSize));
+        }
+        return simhash(hashes);
+    }
+
+    private void clearHashes() {
+        if (hashes.size() > MAX_KEPT_SIZE) {
+            hashes.clear();
+            hashes.trim();
+        } else {
+            hashes.clear();
+        }
+    }
+
+    /**
+     * Simhash of the shingles of the tokens, given by their hash codes (String.hashCode()).
+     *
+     * @param tokenHashes the hash codes of the tokens
+     * @param nrTokens number of tokens in tokenHashes
+     */
+    public long calculate(int[] tokenHashes, int nrTokens, int windowSize) {
+        clearHashes();
+        for (int from = 0; from < nrTokens - windowSize; from++) {
+            hashes.add(shingleHash(tokenHashes, from, windowSize));
+        }
+        return simhash(hashes);
+    }
+
+    /**
+     * Same as {@link #calculate(List, int)}, with {@link #fastShingleHash(int[], int, int)}
+     * as shingle hash (PLAIN_TEXT_SHINGLE3_V2).
+     */
+    public long calculateFast(List<String> tokens, int windowSize) {
+        fillTokenHashes(tokens);
+        return calculateFastBuffered(windowSize);
+    }
+
+    /**
+     * Hash of the tokens [from, from + windowSize): each token hash is multiplied into the
+     * state and the state is finished with the finalizer of MurmurHash3, so all the bits of
+     * the result depend on all the tokens. A few multiplications instead of a block of MD5.
+     */
+    public static long fastShingleHash(int[] tokenHashes, int from, int windowSize) {
+        long h = windowSize;
+        for (int i = from; i < from + windowSize; i++) {
+            h = Long.rotateLeft(h ^ ((tokenHashes[i] & 0xffffffffL) * C1), 31) * C2;
+        }
+        return RollingShingleHash.fmix64(h);
+    }
+
+    /**
+     * Simhash of all the shingles of the tokens, hashed by a {@link RollingShingleHash}
+     * (PLAIN_TEXT_SHINGLE3_V3 with a window of 3).
+     */
+    public long calculateRolling(List<String> tokens, int windowSize) {
+        begin(windowSize);
+        for (int i = 0; i < tokens.size(); i++) {
+            add(tokens.get(i).hashCode());
+        }
+        return end();
+    }
+
+    /**
+     * Starts the rolling simhash of a stream of tokens, given to {@link #add(int)}.
+     */
+    public void begin(int windowSize) {
+        if (rolling == null || rolling.getWindowSize() != windowSize) {
+            rolling = new RollingShingleHash(windowSize);
+        }
+        rolling.reset();
+        clearHashes();
+    }
+
+    /**
+     * Adds the next token of the stream.
+     *
+     * @param tokenHash hash code of the token (String.hashCode())
+     */
+    public void add(int tokenHash) {
+        if (rolling.add(tokenHash)) {
+            hashes.add(rolling.hash());
+        }
+    }
+
+    /**
+     * @return the simhash of the shingles of the stream
+     */
+    public long end() {
+        return simhash(hashes);
+    }
+
+    /**
+     * @return the distinct shingle hashes of the last stream, until the next one starts
+     */
+    public LongOpenHashSet shingles() {
+        return hashes;
+    }
+
+    /**
+     * Same as {@link #calculateRolling(List, int)} with a simhash of 64 * words bits.
+     */
+    public long[] calculateRolling(List<String> tokens, int windowSize, int words) {
+        begin(windowSize);
+        for (int i = 0; i < tokens.size(); i++) {
+            add(tokens.get(i).hashCode());
+        }
+        return end(words);
+    }
+
+    /**
+     * @return the simhash of 64 * words bits of the shingles of the stream. The first word
+     * is the same as {@link #end()}, each other word is calculated from the shingle hashes
+     * mixed again with their own seed.
+     */
+    public long[] end(int words) {
+        if (wideOnes.length < 64 * words) {
+            wideOnes = new int[64 * words];
+        }
+        Arrays.fill(wideOnes, 0, 64 * words, 0);
+        int n = distinctHashes(hashes);
+        ops.accumulate(distinct, n, wideOnes, 0);
+        for (int w = 1; w < words; w++) {
+            for (int i = 0; i < n; i++) {
+                mixed[i] = RollingShingleHash.fmix64(distinct[i] + w * C2);
+            }
+            ops.accumulate(mixed, n, wideOnes, 64 * w);
+        }
+        long[] res = new long[words];
+        for (int w = 0; w < words; w++) {
+            res[w] = Simhash.fromCounts(wideOnes, 64 * w, hashes.size());
+        }
+        return res;
+    }
+
+    /**
+     * Same as {@link StringShingleHash#calculate(List)} on the tokens [from, from + windowSize).
+     */
+    public long shingleHash(int[] tokenHashes, int from, int windowSize) {
+        if (shingle.length < 4 * windowSize) {
+            shingle = new byte[4 * windowSize];
+        }
+        for (int i = 0; i < windowSize; i++) {
+            int h = tokenHashes[from + i];
+            shingle[4 * i] = (byte) (h >>> 24);
+            shingle[4 * i + 1] = (byte) (h >>> 16);
+            shingle[4 * i + 2] = (byte) (h >>> 8);
+            shingle[4 * i + 3] = (byte) h;
+        }
+        md.update(shingle, 0, 4 * windowSize);
+        try {
+            md.digest(digest, 0, 16);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);
+        }
+        long res = 0;
+        for (int i = 0; i < 8; i++) {
+            res = (res << 8) | (digest[i] & 0xff);
+        }
+        return res;
+    }
+
+    /**
+     * Same as {@link Simhash#calculate(java.util.Set)}.
+     */
+    public long simhash(LongOpenHashSet hashes) {
+        Arrays.fill(ones, 0);
+        int n = distinctHashes(hashes);
+        ops.accumulate(distinct, n, ones, 0);
+        return Simhash.fromCounts(ones, hashes.size());
+    }
+
+    /**
+     * Copies the hashes to the distinct buffer, for {@link SimhashOps#accumulate(long[], int, int[], int)}.
+     *
+     * @return the number of hashes
+     */
+    private int distinctHashes(LongOpenHashSet hashes) {
+        int n = hashes.size();
+        if (distinct.length < n) {
+            distinct = new long[Math.max(n, 2 * distinct.length)];
+            mixed = new long[distinct.length];
+        }
+        int i = 0;
+        for (LongIterator it = hashes.iterator(); it.hasNext(); ) {
+            distinct[i++] = it.nextLong();
+        }
+        return n;
+    }
+}
@@ -0,0 +1,96 @@
+package net.internetmemory.simhash;
+
+import java.util.Arrays;
+
+/**
+ * Bulk operations on simhashes: the accumulation of shingle hashes into bit counters and the
+ * Hamming distances of one fingerprint to a block of fingerprints. {@link #get()} returns the
+ * implementation on the JDK Vector API when it is available (built with the java17 profile and
+ * run with --add-modules jdk.incubator.vector), the scalar one otherwise. Both give the same
+ * results.
+ */
+public abstract class SimhashOps {
+    private static final SimhashOps INSTANCE = load();
+
+    /**
+     * @return the vector implementation if it can be used, the scalar one otherwise
+     */
+    public static SimhashOps get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the scalar implementation
+     */
+    public static SimhashOps scalar() {
+        return ScalarSimhashOps.INSTANCE;
+    }
+
+    private static SimhashOps load() {
+        try {
+            SimhashOps ops = (SimhashOps) Class.forName("net.internetmemory.simhash.VectorSimhashOps")
+                    .getDeclaredConstructor().newInstance();
+            if (ops.agreesWith(scalar())) {
+                return ops;
+            }
+            System.err.println("Vector simhash operations disagree with the scalar ones, not used.");
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // built without the java17 profile, run on an older JVM or without the incubator module
+        }
+        return scalar();
+    }
+
+    /**
+     * @return true if both implementations give the same results on a few pseudo-random hashes
+     */
+    private boolean agreesWith(SimhashOps other) {
+        long[] hashes = new long[67];
+        long x = 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < hashes.length; i++) {
+            x = RollingShingleHash.fmix64(x + i);
+            hashes[i] = x;
+        }
+        int[] ones = new int[128];
+        int[] otherOnes = new int[128];
+        accumulate(hashes, hashes.length, ones, 64);
+        other.accumulate(hashes, hashes.length, otherOnes, 64);
+        if (!Arrays.equals(ones, otherOnes)) {
+            return false;
+        }
+        for (int words = 1; words <= 4; words++) {
+            int[] d = new int[hashes.length / words];
+            int[] otherD = new int[hashes.length / words];
+            distances(hashes, 1, words, hashes, d.length, d);
+            other.distances(hashes, 1, words, hashes, d.length, otherD);
+            if (!Arrays.equals(d, otherD)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the name of the implementation
+     */
+    public abstract String name();
+
+    /**
+     * Adds the bits of n hashes to the counts of 1 bits of each position, as
+     * {@link Simhash#accumulate(long, int[], int)} on each hash.
+     *
+     * @param ones the counts, from offset to offset + 64
+     */
+    public abstract void accumulate(long[] hashes, int n, int[] ones, int offset);
+
+    /**
+     * Hamming distances of a fingerprint to the fingerprints of a block.
+     *
+     * @param query the fingerprint, words longs from queryOffset
+     * @param words number of longs of each fingerprint
+     * @param block the fingerprints, one after the other
+     * @param nrFingerprints number of fingerprints in the block
+     * @param distances the distances, one per fingerprint of the block
+     */
+    public abstract void distances(long[] query, int queryOffset, int words, long[] block, int nrFingerprints,
+                                   int[] distances);
+}
@@ -0,0 +1,84 @@
+package net.internetmemory.simhash;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.internetmemory.utils.NodeVisitor;
+import org.xml.sax.Attributes;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Visitor collecting the structure of a page, passing the nodes on to another visitor, so the
+ * structural fingerprint is calculated in the same traversal as the text one. The features are
+ * the tag paths of the elements (html/body/div/ul/li...) and each class token of an element
+ * with its tag path, hashed incrementally along the path; their simhash is the same for pages
+ * of the same template, whatever their text and their number of list items.
+ */
+public class StructureVisitor implements NodeVisitor {
+    private static final long ROOT = 0x5bd1e9955bd1e995L;
+
+    private final NodeVisitor delegate;
+    private final LongOpenHashSet features = new LongOpenHashSet();
+    private long[] paths = new long[64];
+    private int depth = 0;
+
+    /**
+     * @param delegate the visitor the nodes are passed on to, null for none
+     */
+    public StructureVisitor(NodeVisitor delegate) {
+        this.delegate = delegate;
+        paths[0] = ROOT;
+    }
+
+    public NodeVisitor getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void init() {
+        if (delegate != null) {
+            delegate.init();
+        }
+        features.clear();
+        depth = 0;
+    }
+
+    @Override
+    public boolean visitElement(String namespace, String localName, String qName, Attributes attributes) {
+        long path = RollingShingleHash.fmix64(paths[depth] * 31 + qName.toLowerCase(Locale.ROOT).hashCode());
+        if (depth + 1 == paths.length) {
+            paths = Arrays.copyOf(paths, 2 * paths.length);
+        }
+        paths[++depth] = path;
+        features.add(path);
+        String classes = attributes.getValue("class");
+        if (classes != null) {
+            for (String c : classes.split("\\s+")) {
+                if (!c.isEmpty()) {
+                    features.add(RollingShingleHash.fmix64(path ^ c.toLowerCase(Locale.ROOT).hashCode()));
+                }
+            }
+        }
+        return delegate == null || delegate.visitElement(namespace, localName, qName, attributes);
+    }
+
+    @Override
+    public boolean leaveElement(String namespace, String localName, String qName) {
+        depth--;
+        return delegate == null || delegate.leaveElement(namespace, localName, qName);
+    }
+
+    @Override
+    public void visitTextNode(String text, String nameOfParentElement) {
+        if (delegate != null) {
+            delegate.visitTextNode(text, nameOfParentElement);
+        }
+    }
+
+    /**
+     * @return the simhash of the distinct features of the visited elements
+     */
+    public long simhash() {
+        return SimhashKernel.get().simhash(features);
+    }
+}
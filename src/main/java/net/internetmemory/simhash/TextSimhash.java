@@ -26,6 +26,30 @@ public class TextSimhash {
      * @return
      */
     public long calculate(List<String> tokens) {
+        return SimhashKernel.get().calculate(tokens, windowSize);
+    }
+
+    /**
+     * Calulates the simhash value of all the shingles, including the last one which
+     * {@link #calculate(List)} does not take, with rolling shingle hashes
+     * (PLAIN_TEXT_SHINGLE3_V3 with a window of 3).
+     */
+    public long calculateRolling(List<String> tokens) {
+        return SimhashKernel.get().calculateRolling(tokens, windowSize);
+    }
+
+    /**
+     * Same as {@link #calculateRolling(List)}, with a simhash of 64 * words bits.
+     */
+    public long[] calculateRolling(List<String> tokens, int words) {
+        return SimhashKernel.get().calculateRolling(tokens, windowSize, words);
+    }
+
+    /**
+     * Calculates the simhash value with the shingle sets and the boxed hashes, as it was
+     * done before {@link SimhashKernel}, e.g. to check or to benchmark the kernel.
+     */
+    public long calculateWithSets(List<String> tokens) {
         Set<List<String>> shingles = Shingles.build(tokens, windowSize);
         Set<Long> hashes = new HashSet<>();
         for (List<String> shingle : shingles) {
@@ -0,0 +1,91 @@
+package net.internetmemory.simhash;
+
+import org.apache.lucene.analysis.icu.segmentation.ICUTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Locale;
+import java.util.function.IntConsumer;
+
+/**
+ * Tokenizes texts as {@link SimhashFingerprint} does and gives the hash codes of the lower-cased
+ * terms, i.e. term.toLowerCase().hashCode(), calculated on the buffer of the term: no String is
+ * created for a term, except the few ones {@link Character#toLowerCase(char)} does not lower-case
+ * like {@link String#toLowerCase()} (dotted I, final sigma, surrogate pairs, Turkish, Azeri and
+ * Lithuanian locales). The ICUTokenizer is reused through setReader.
+ *
+ * A token hasher is not thread-safe, {@link #get()} returns the token hasher of the calling thread.
+ */
+public class TokenHasher {
+    private static final ThreadLocal<TokenHasher> hashers = ThreadLocal.withInitial(TokenHasher::new);
+
+    private final ICUTokenizer tokenizer;
+    private final CharTermAttribute term;
+    private final boolean specialLocale;
+
+    public TokenHasher() {
+        tokenizer = new ICUTokenizer(new StringReader(""));
+        term = tokenizer.addAttribute(CharTermAttribute.class);
+        try {
+            // a tokenizer gets a new reader only once closed
+            tokenizer.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        String language = Locale.getDefault().getLanguage();
+        specialLocale = language.equals("tr") || language.equals("az") || language.equals("lt");
+    }
+
+    /**
+     * @return the token hasher of the calling thread
+     */
+    public static TokenHasher get() {
+        return hashers.get();
+    }
+
+    /**
+     * Gives the hash codes of the lower-cased terms of the texts to out, in order.
+     */
+    public void hash(IntConsumer out, String... texts) {
+        for (String text : texts) {
+            hash(text, out);
+        }
+    }
+
+    private void hash(String text, IntConsumer out) {
+        try {
+            tokenizer.setReader(new StringReader(text));
+            tokenizer.reset();
+            while (tokenizer.incrementToken()) {
+                out.accept(lowerCaseHash(term.buffer(), term.length()));
+            }
+            tokenizer.end();
+        } catch (IOException ignored) {
+            // as SimhashFingerprint.tokenize, the terms read before the error are kept
+        } finally {
+            try {
+                tokenizer.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * @return the same as new String(chars, 0, length).toLowerCase().hashCode()
+     */
+    int lowerCaseHash(char[] chars, int length) {
+        if (specialLocale) {
+            return new String(chars, 0, length).toLowerCase().hashCode();
+        }
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c >= 0x80 && (c == '\u0130' || c == '\u03a3' || Character.isSurrogate(c))) {
+                return new String(chars, 0, length).toLowerCase().hashCode();
+            }
+            h = 31 * h + Character.toLowerCase(c);
+        }
+        return h;
+    }
+}
@@ -0,0 +1,103 @@
+package net.internetmemory.simhash;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+import java.util.Arrays;
+
+/**
+ * Simhash of weighted tokens: the shingles are hashed as in PLAIN_TEXT_SHINGLE3_V3 (all the
+ * windows, {@link RollingShingleHash}), an occurrence of a shingle weighs the mean weight of
+ * its tokens and a shingle weighs the mean weight of its occurrences times the square root of
+ * their number, so repeated shingles count less than their number of occurrences. Each bit is set when the
+ * shingles having a 0 at its position weigh more than the shingles having a 1 (the bits are in
+ * the same order as {@link Simhash}).
+ *
+ * Not thread-safe, {@link #get()} returns the weighted simhash of the calling thread.
+ */
+public class WeightedSimhash {
+    private static final ThreadLocal<WeightedSimhash> simhashes = ThreadLocal.withInitial(() -> new WeightedSimhash(3));
+
+    // a map larger than this is not kept between two calls
+    private static final int MAX_KEPT_SIZE = 1 << 16;
+
+    private final RollingShingleHash rolling;
+    private final float[] window;
+    private int pos = 0;
+    private float windowWeight = 0;
+    private final Long2DoubleOpenHashMap weights = new Long2DoubleOpenHashMap();
+    private final Long2IntOpenHashMap counts = new Long2IntOpenHashMap();
+    private final double[] sums = new double[64];
+
+    public WeightedSimhash(int windowSize) {
+        rolling = new RollingShingleHash(windowSize);
+        window = new float[windowSize];
+    }
+
+    /**
+     * @return the weighted simhash, with windows of 3 tokens, of the calling thread
+     */
+    public static WeightedSimhash get() {
+        return simhashes.get();
+    }
+
+    /**
+     * Starts a new stream of tokens.
+     */
+    public void begin() {
+        rolling.reset();
+        Arrays.fill(window, 0);
+        pos = 0;
+        windowWeight = 0;
+        if (weights.size() > MAX_KEPT_SIZE) {
+            weights.clear();
+            weights.trim();
+            counts.clear();
+            counts.trim();
+        } else {
+            weights.clear();
+            counts.clear();
+        }
+    }
+
+    /**
+     * Adds the next token of the stream.
+     *
+     * @param tokenHash hash code of the token in lower case
+     * @param weight weight of the token, positive
+     */
+    public void add(int tokenHash, float weight) {
+        windowWeight += weight - window[pos];
+        window[pos] = weight;
+        pos = pos + 1 == window.length ? 0 : pos + 1;
+        if (rolling.add(tokenHash)) {
+            long hash = rolling.hash();
+            weights.addTo(hash, windowWeight / window.length);
+            counts.addTo(hash, 1);
+        }
+    }
+
+    /**
+     * @return the simhash of the shingles of the stream
+     */
+    public long end() {
+        Arrays.fill(sums, 0);
+        for (ObjectIterator<Long2DoubleMap.Entry> it = weights.long2DoubleEntrySet().fastIterator(); it.hasNext(); ) {
+            Long2DoubleMap.Entry e = it.next();
+            long hash = e.getLongKey();
+            double w = e.getDoubleValue() / Math.sqrt(counts.get(hash));
+            for (int bit = 0; bit < 64; bit++) {
+                sums[bit] += ((hash >>> bit) & 1) != 0 ? w : -w;
+            }
+        }
+        long hashValue = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (sums[bit] < 0) {
+                hashValue |= 1L << (63 - bit);
+            }
+        }
+        return hashValue;
+    }
+}
@@ -0,0 +1,135 @@
+package net.internetmemory.simhash;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.internetmemory.utils.TextExtractionVisitor;
+import org.xml.sax.Attributes;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * {@link TextExtractionVisitor} which also streams the tokens of the text nodes, with a weight,
+ * to a {@link WeightedSimhash}, so the weighted simhash is calculated in the same traversal as
+ * the text. The weight of a token is the product of the weights of its enclosing elements:
+ * headings weigh more, links, navigation, forms and the elements whose id or class have a word
+ * of navigation or footers (split on spaces, '-' and '_', so "navy" or "canvas" are not) weigh
+ * less. The tokens of the title weigh more, those of short text
+ * nodes (menus, buttons...) less.
+ */
+public class WeightedTextVisitor extends TextExtractionVisitor {
+    static final float TITLE_WEIGHT = 3f;
+    static final float HEADING_WEIGHT = 2f;
+    static final float CONTENT_WEIGHT = 1.5f;
+    static final float LINK_WEIGHT = 0.5f;
+    static final float BOILERPLATE_WEIGHT = 0.25f;
+    // text nodes with less tokens than this are probably not content
+    static final int SHORT_TEXT_TOKENS = 4;
+    static final float SHORT_TEXT_WEIGHT = 0.5f;
+
+    private static final Set<String> HEADINGS = new HashSet<>(Arrays.asList("h1", "h2", "h3", "h4", "h5", "h6"));
+    private static final Set<String> CONTENT = new HashSet<>(Arrays.asList("article", "main"));
+    private static final Set<String> BOILERPLATE = new HashSet<>(Arrays.asList(
+            "nav", "header", "footer", "aside", "menu", "form", "select", "option", "button", "label"));
+    private static final Set<String> BOILERPLATE_NAMES = new HashSet<>(Arrays.asList(
+            "nav", "navbar", "navigation", "menu", "footer", "sidebar", "breadcrumb", "breadcrumbs",
+            "cookie", "cookies", "banner", "share", "social"));
+    private static final Pattern NAME_SEPARATORS = Pattern.compile("[\\s_-]+");
+
+    private final WeightedSimhash simhash;
+    private float[] weights = new float[64];
+    private int depth = 0;
+    private boolean inBody = false;
+    private final IntArrayList nodeTokens = new IntArrayList();
+
+    /**
+     * @param simhash the weighted simhash the tokens are added to, started by the constructor
+     *                and by {@link #init()}
+     */
+    public WeightedTextVisitor(WeightedSimhash simhash) {
+        this.simhash = simhash;
+        weights[0] = 1f;
+        simhash.begin();
+    }
+
+    @Override
+    public void init() {
+        super.init();
+        depth = 0;
+        inBody = false;
+        weights[0] = 1f;
+        simhash.begin();
+    }
+
+    @Override
+    public boolean visitElement(String namespace, String localName, String qName, Attributes attributes) {
+        String name = qName.toLowerCase();
+        if (depth + 1 == weights.length) {
+            weights = Arrays.copyOf(weights, 2 * weights.length);
+        }
+        weights[depth + 1] = weights[depth] * weight(name, attributes);
+        depth++;
+        inBody |= name.equals("body");
+        return super.visitElement(namespace, localName, qName, attributes);
+    }
+
+    @Override
+    public boolean leaveElement(String namespace, String localName, String qName) {
+        depth--;
+        return super.leaveElement(namespace, localName, qName);
+    }
+
+    @Override
+    public void visitTextNode(String text, String nameOfParentElement) {
+        super.visitTextNode(text, nameOfParentElement);
+        float weight;
+        if (inBody) {
+            weight = weights[depth];
+        } else if ("title".equalsIgnoreCase(nameOfParentElement)) {
+            weight = TITLE_WEIGHT;
+        } else {
+            return;
+        }
+        nodeTokens.clear();
+        TokenHasher.get().hash(nodeTokens::add, text);
+        if (nodeTokens.size() < SHORT_TEXT_TOKENS) {
+            weight *= SHORT_TEXT_WEIGHT;
+        }
+        for (int i = 0; i < nodeTokens.size(); i++) {
+            simhash.add(nodeTokens.getInt(i), weight);
+        }
+    }
+
+    /**
+     * @return the weight of an element, relative to its parent
+     */
+    static float weight(String name, Attributes attributes) {
+        if (HEADINGS.contains(name)) {
+            return HEADING_WEIGHT;
+        }
+        if (BOILERPLATE.contains(name) || looksLikeBoilerplate(attributes.getValue("id"))
+                || looksLikeBoilerplate(attributes.getValue("class"))) {
+            return BOILERPLATE_WEIGHT;
+        }
+        if (CONTENT.contains(name)) {
+            return CONTENT_WEIGHT;
+        }
+        if (name.equals("a")) {
+            return LINK_WEIGHT;
+        }
+        return 1f;
+    }
+
+    private static boolean looksLikeBoilerplate(String value) {
+        if (value == null || value.isEmpty()) {
+            return false;
+        }
+        for (String word : NAME_SEPARATORS.split(value.toLowerCase())) {
+            if (BOILERPLATE_NAMES.contains(word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
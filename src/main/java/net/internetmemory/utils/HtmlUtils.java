@@ -108,12 +108,24 @@ public class HtmlUtils {
      * @return the name (canonical for java.lang) of a detected character encoding of the HTML document
      */
     public static String detectEncoding(byte[] html) {
+        return detectEncoding(html, 0, html.length);
+    }
 
-        final int numBytesToUse = html.length > NUM_BYTES_TO_DETECT_ENCODING ?
-                NUM_BYTES_TO_DETECT_ENCODING : html.length;
+    /**
+     * Detects character encoding of the HTML document stored in a part of a byte array
+     *
+     * @param html byte array containing the HTML document to analyze
+     * @param offset offset of the document in the array
+     * @param length length of the document
+     * @return the name (canonical for java.lang) of a detected character encoding of the HTML document
+     */
+    public static String detectEncoding(byte[] html, int offset, int length) {
+
+        final int numBytesToUse = length > NUM_BYTES_TO_DETECT_ENCODING ?
+                NUM_BYTES_TO_DETECT_ENCODING : length;
 
         UniversalDetector detector = new UniversalDetector(null);
-        detector.handleData(html, 0, numBytesToUse);
+        detector.handleData(html, offset, numBytesToUse);
         detector.dataEnd();
 
         String detected = detector.getDetectedCharset();
@@ -813,14 +825,7 @@ public class HtmlUtils {
          */
         public static org.jsoup.nodes.Document cleanAndParseToJsoupDoc(byte[] html, String url, String encoding, boolean forPreviewing) throws IOException {
             org.jsoup.nodes.Document doc = parseToJsoupDoc(html, url, encoding);
-
-            if(forPreviewing){
-                removeScripts(doc);
-                disableFrames(doc);
-            }
-
-            resolveLinks(doc, url, forPreviewing);
-
+            clean(doc, url, forPreviewing);
             return doc;
         }
 
@@ -868,17 +873,68 @@ public class HtmlUtils {
                 String url,
                 String encoding,
                 boolean forPreviewing) throws IOException {
+            return cleanAndParseStable(body, 0, body.length, url, encoding, forPreviewing);
+        }
+
+        /**
+         * Same as {@link #cleanAndParseStable(byte[], String, String, boolean)} for a document
+         * stored in a part of a byte array.
+         *
+         * @param body byte array containing the HTML document
+         * @param offset offset of the document in the array
+         * @param length length of the document
+         * @param url the base URL of the document
+         * @param encoding Character encoding of the document
+         * @param forPreviewing if true then the method produces cleaned content for previewing.
+         * @return Document object
+         * @throws IOException
+         */
+        public static Document cleanAndParseStable(
+                byte[] body,
+                int offset,
+                int length,
+                String url,
+                String encoding,
+                boolean forPreviewing) throws IOException {
+            org.jsoup.nodes.Document doc = parseToJsoupDoc(
+                    new ByteArrayInputStream(body, offset, length), url, encoding);
+            return cleanAndParseStable(doc, body, offset, length, url, encoding, forPreviewing);
+        }
+
+        /**
+         * Same as {@link #cleanAndParseStable(byte[], int, int, String, String, boolean)} for a
+         * document already parsed from body[offset, offset + length). The parsed document is
+         * cleaned in place.
+         *
+         * @param doc the document parsed from body, with {@link #parseToJsoupDoc(InputStream, String, String)}
+         * @param body byte array containing the HTML document
+         * @param offset offset of the document in the array
+         * @param length length of the document
+         * @param url the base URL of the document
+         * @param encoding Character encoding of the document
+         * @param forPreviewing if true then the method produces cleaned content for previewing.
+         * @return Document object
+         * @throws IOException
+         */
+        public static Document cleanAndParseStable(
+                org.jsoup.nodes.Document doc,
+                byte[] body,
+                int offset,
+                int length,
+                String url,
+                String encoding,
+                boolean forPreviewing) throws IOException {
 
             int maxAttempts = 10;
 
-            byte[] lastBody = body;
-            org.jsoup.nodes.Document firstDoc = cleanAndParseToJsoupDoc(
-                    lastBody, url, encoding, forPreviewing);
-            org.jsoup.nodes.Document doc = firstDoc;
-            for (int i = 0; i < maxAttempts; i++) {
-                if (i > 0) {
-                    doc = cleanAndParseToJsoupDoc(lastBody, url, encoding, forPreviewing);
-                }
+            clean(doc, url, forPreviewing);
+            doc.outputSettings(new OutputSettings().syntax(Syntax.xml));
+            byte[] lastBody = toByteArray(doc, encoding);
+            if (rangeEquals(body, offset, length, lastBody)) {
+                return toW3CDocument(doc);
+            }
+            for (int i = 1; i < maxAttempts; i++) {
+                doc = cleanAndParseToJsoupDoc(lastBody, url, encoding, forPreviewing);
                 doc.outputSettings(new OutputSettings().syntax(Syntax.xml));
                 byte[] newBody = toByteArray(doc, encoding);
                 if (Arrays.equals(lastBody, newBody)) {
@@ -889,6 +945,27 @@ public class HtmlUtils {
             return toW3CDocument(doc);
         }
 
+        private static void clean(org.jsoup.nodes.Document doc, String url, boolean forPreviewing) {
+            if(forPreviewing){
+                removeScripts(doc);
+                disableFrames(doc);
+            }
+
+            resolveLinks(doc, url, forPreviewing);
+        }
+
+        private static boolean rangeEquals(byte[] a, int offset, int length, byte[] b) {
+            if (length != b.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (a[offset + i] != b[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         /**
          * Attempts to perform a "stable" cleanAndParse - i.e. it parses and serializes
          * the document until it stops changing. If that never happens it use the original
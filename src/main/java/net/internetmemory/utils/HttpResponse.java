@@ -0,0 +1,183 @@
+package net.internetmemory.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HTTP response header parsed from the content of a WARC response record. The parser works
+ * on the record buffer: it finds the end of the header, reads the status and the Location
+ * header in place and gives the payload as an offset and a length in the same buffer.
+ */
+public class HttpResponse {
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte[] HTTP = {'H', 'T', 'T', 'P'};
+    private static final byte[] LOCATION = {'l', 'o', 'c', 'a', 't', 'i', 'o', 'n'};
+
+    private final byte[] buffer;
+    private final int headerOffset;
+    private final int payloadOffset;
+    private final int payloadLength;
+    private boolean statusLine;
+    private String status;
+    private String location;
+
+    private HttpResponse(byte[] buffer, int headerOffset, int payloadOffset, int payloadLength) {
+        this.buffer = buffer;
+        this.headerOffset = headerOffset;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+    }
+
+    /**
+     * Parses the HTTP header at the beginning of buffer[offset, offset + length).
+     *
+     * @return the parsed response, or null if the end of the header (CRLFCRLF) is not found
+     */
+    public static HttpResponse parse(byte[] buffer, int offset, int length) {
+        int end = indexOfHeaderEnd(buffer, offset, offset + length);
+        if (end < 0) {
+            return null;
+        }
+        HttpResponse res = new HttpResponse(buffer, offset, end + 4, offset + length - end - 4);
+        res.parseHeader(end);
+        return res;
+    }
+
+    public static HttpResponse parse(byte[] buffer) {
+        return parse(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Returns the position of the first CRLFCRLF in buffer[from, to), or -1. The scan looks at
+     * the last byte of each 4 bytes window and skips the whole window when it is neither CR
+     * nor LF (Horspool), so most of the header bytes are not compared at all.
+     */
+    static int indexOfHeaderEnd(byte[] buffer, int from, int to) {
+        int i = from;
+        while (i <= to - 4) {
+            byte last = buffer[i + 3];
+            if (last == LF) {
+                if (buffer[i] == CR && buffer[i + 1] == LF && buffer[i + 2] == CR) {
+                    return i;
+                }
+                i += 2;
+            } else if (last == CR) {
+                i += 1;
+            } else {
+                i += 4;
+            }
+        }
+        return -1;
+    }
+
+    private void parseHeader(int end) {
+        int lineEnd = indexOfCrlf(headerOffset, end + 2);
+        statusLine = startsWith(headerOffset, lineEnd, HTTP, false);
+        if (statusLine) {
+            // status is the second space separated token of the status line
+            int sp = indexOf((byte) ' ', headerOffset, lineEnd);
+            if (sp >= 0) {
+                int sp2 = indexOf((byte) ' ', sp + 1, lineEnd);
+                status = string(sp + 1, sp2 < 0 ? lineEnd : sp2);
+            }
+        }
+
+        int lineStart = lineEnd + 2;
+        while (lineStart < end + 2 && location == null) {
+            lineEnd = indexOfCrlf(lineStart, end + 2);
+            int colon = indexOf((byte) ':', lineStart, lineEnd);
+            if (colon - lineStart == LOCATION.length && startsWith(lineStart, colon, LOCATION, true)) {
+                int from = colon + 1;
+                int to = lineEnd;
+                while (from < to && (buffer[from] & 0xff) <= ' ') {
+                    from++;
+                }
+                while (to > from && (buffer[to - 1] & 0xff) <= ' ') {
+                    to--;
+                }
+                location = string(from, to);
+            }
+            lineStart = lineEnd + 2;
+        }
+    }
+
+    private int indexOfCrlf(int from, int to) {
+        for (int i = from; i < to - 1; i++) {
+            if (buffer[i] == CR && buffer[i + 1] == LF) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean startsWith(int from, int to, byte[] prefix, boolean ignoreCase) {
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            byte b = buffer[from + i];
+            if (ignoreCase && b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String string(int from, int to) {
+        return new String(buffer, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return true if the header starts with an HTTP status line
+     */
+    public boolean hasStatusLine() {
+        return statusLine;
+    }
+
+    /**
+     * @return the status code as written in the status line, null if there is no status line
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the value of the Location header, not resolved, or null
+     */
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     * @return the buffer holding the header and the payload
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the offset of the payload in the buffer
+     */
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    /**
+     * @return the length of the payload
+     */
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+}
@@ -31,21 +31,20 @@ import org.xml.sax.helpers.DefaultHandler;
 /**
  * Class that encapsulates TIKA based mime type detection.
  * 
- * Deprecated: now replaced by the extractor (?)
+ * The parser runs in a daemon thread, so a detector which is not destroyed does not keep the
+ * JVM alive.
  */
-@Deprecated
 public class MimeDetection {
 	static Set<String> qualifyingMimes = new HashSet<String>();
 
 	private final AutoDetectParser parser = new AutoDetectParser();
-	private final Metadata metadata = new Metadata();
 	private final DefaultHandler defHandler = new DefaultHandler();
 	private final ParseContext parConte = new ParseContext();
 
 	private final int timeout = 10;
 
 	// private ExecutorService executor = Executors.newFixedThreadPool(2);
-	private ExecutorService executor = Executors.newSingleThreadExecutor();
+	private ExecutorService executor = newExecutor();
 
 	public MimeDetection() {
 
@@ -87,13 +86,27 @@ public class MimeDetection {
 	 * @return detected mime type
 	 */
 	public String detectMimeType(byte[] content) {
-		InputStream is = new ByteArrayInputStream(content);
+		return detectMimeType(content, 0, content.length);
+	}
+
+	/**
+	 * Detect mime type given a part of a byte array
+	 * 
+	 * @param content
+	 * @param offset
+	 * @param length
+	 * @return detected mime type
+	 */
+	public String detectMimeType(byte[] content, int offset, int length) {
+		InputStream is = new ByteArrayInputStream(content, offset, length);
 		// return detectMimeType(is);
 		return detectMimeTypeTimeout(is, timeout);
 	}
 
 	public String detectMimeType(InputStream is) {
 		String detectedMimeType = null;
+		// a new Metadata for each document, otherwise the previous Content-Type is used as a hint
+		Metadata metadata = new Metadata();
 		try {
 			parser.parse(is, defHandler, metadata, parConte);
 			detectedMimeType = metadata.get(HttpHeaders.CONTENT_TYPE);
@@ -174,7 +187,7 @@ public class MimeDetection {
 			List<Runnable> shutdownNow = executor.shutdownNow();
 			System.out.println("shutdownNow: " + shutdownNow);
 
-			executor = Executors.newSingleThreadExecutor();
+			executor = newExecutor();
 
 			Logger.getLogger(MimeDetection.class.getName()).log(Level.WARNING,
 					"Time out while detecting mime.", ex);
@@ -202,4 +215,12 @@ public class MimeDetection {
 	public void destroy() {
 		executor.shutdownNow();
 	}
+
+	private static ExecutorService newExecutor() {
+		return Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "mime-detection");
+			t.setDaemon(true);
+			return t;
+		});
+	}
 }
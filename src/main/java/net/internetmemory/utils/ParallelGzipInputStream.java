@@ -0,0 +1,532 @@
+package net.internetmemory.utils;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompressed content of a multi-member gzip file (e.g. a .warc.gz, where each record is a
+ * gzip member), inflated by several threads.
+ *
+ * The file is cut in chunks of a fixed compressed size. A task inflates the members which
+ * start in its chunk: it looks for the first gzip header in the chunk which inflates to a
+ * member with a valid CRC and length, then inflates the following members until it reaches
+ * the next chunk. The chunks are read back in order, and the reader checks that each chunk
+ * starts where the previous one ended, otherwise it inflates the gap itself, so a gzip magic
+ * number inside compressed data can not corrupt the output.
+ *
+ * A task inflates at most {@link #MAX_CHUNK_INFLATED} bytes: it stops before the member which
+ * would exceed it, and the reader inflates that member a buffer at a time, then the rest of the
+ * chunk, so the memory of the chunks in flight is bounded whatever the compression ratio.
+ */
+public class ParallelGzipInputStream extends InputStream {
+    public static int CHUNK_SIZE = 8 * 1024 * 1024;
+    public static int MAX_CHUNK_INFLATED = 64 * 1024 * 1024;
+
+    private static final int BUF_SIZE = 64 * 1024;
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+    // returned by inflateMember for a member larger than the space left in the chunk
+    private static final long TOO_LARGE = -2;
+
+    private final FileChannel channel;
+    private final long size;
+    private final long first;
+    private final int chunkSize;
+    private final int maxInFlight;
+    private final int maxInflated;
+    private final ExecutorService inflaters;
+    private final Deque<Future<Chunk>> inFlight = new ArrayDeque<>();
+
+    private long nextChunk = 0;
+    private long expectedOffset = 0;
+    private byte[] current = new byte[0];
+    private int pos = 0;
+    private int limit = 0;
+    private long inflatedOffset = 0;
+    // end of the chunk read last, after expectedOffset if it stopped before a large member
+    private long currentEnd = 0;
+    // the large member being read, and its buffer
+    private Member streamed;
+    private final byte[] streamBuffer = new byte[BUF_SIZE];
+
+    // offset in the inflated stream -> offset in the file, of the members read so far
+    private final TreeMap<Long, Long> memberOffsets = new TreeMap<>();
+
+    /**
+     * Members inflated by one task.
+     */
+    private static class Chunk {
+        final long end;
+        final long firstMember;
+        final long lastEnd;
+        final byte[] data;
+        // offsets of the members in the file, and of their inflated content in data
+        final LongArrayList members = new LongArrayList();
+        final LongArrayList starts = new LongArrayList();
+
+        Chunk(long end, long firstMember, long lastEnd, byte[] data) {
+            this.end = end;
+            this.firstMember = firstMember;
+            this.lastEnd = lastEnd;
+            this.data = data;
+        }
+    }
+
+    public ParallelGzipInputStream(String fileName, int nrThreads) throws IOException {
+        this(fileName, nrThreads, CHUNK_SIZE);
+    }
+
+    public ParallelGzipInputStream(String fileName, int nrThreads, int chunkSize) throws IOException {
+        this(fileName, nrThreads, chunkSize, 0);
+    }
+
+    /**
+     * @param start offset in the file of the first member to read
+     */
+    public ParallelGzipInputStream(String fileName, int nrThreads, int chunkSize, long start) throws IOException {
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        this.size = channel.size();
+        this.first = start;
+        this.expectedOffset = start;
+        this.chunkSize = chunkSize;
+        this.maxInFlight = 2 * nrThreads;
+        this.maxInflated = MAX_CHUNK_INFLATED;
+        this.inflaters = Executors.newFixedThreadPool(nrThreads, r -> {
+            Thread t = new Thread(r, "gzip-inflater");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Returns the offset in the file of the gzip member containing a given offset of the
+     * inflated stream. The member must have been read already, and the members before it are
+     * forgotten, so the offsets must be asked in increasing order.
+     *
+     * @param offset an offset in the inflated stream
+     * @return the offset of the member in the file
+     */
+    public long memberOffset(long offset) {
+        Map.Entry<Long, Long> e = memberOffsets.floorEntry(offset);
+        if (e == null) {
+            throw new IllegalArgumentException("No member at offset " + offset);
+        }
+        memberOffsets.headMap(e.getKey()).clear();
+        return e.getValue();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return current[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(current, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (streamed != null) {
+            streamed.close();
+            streamed = null;
+        }
+        inflaters.shutdownNow();
+        channel.close();
+    }
+
+    /**
+     * Makes sure there is something to read in current, returns false at the end of the file.
+     */
+    private boolean fill() throws IOException {
+        while (pos >= limit) {
+            if (expectedOffset < currentEnd) {
+                // the last chunk stopped before a member too large for it
+                stream();
+                continue;
+            }
+            while (inFlight.size() < maxInFlight && first + nextChunk * chunkSize < size) {
+                long start = first + nextChunk * chunkSize;
+                long end = Math.min(size, start + chunkSize);
+                inFlight.add(inflaters.submit(() -> inflateChunk(start, end)));
+                nextChunk++;
+            }
+            if (inFlight.isEmpty()) {
+                return false;
+            }
+            Chunk chunk;
+            try {
+                chunk = inFlight.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while inflating", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+            if (chunk.firstMember < 0 && expectedOffset >= chunk.end) {
+                // no member starts in this chunk, the previous one covered it
+                continue;
+            } else if (chunk.firstMember != expectedOffset) {
+                // the task started on a false gzip header, or missed the first member
+                chunk = inflateFrom(expectedOffset, chunk.end, new Input(), maxInflated);
+            }
+            use(chunk);
+        }
+        return true;
+    }
+
+    private void use(Chunk chunk) {
+        for (int i = 0; i < chunk.members.size(); i++) {
+            memberOffsets.put(inflatedOffset + chunk.starts.getLong(i), chunk.members.getLong(i));
+        }
+        current = chunk.data;
+        pos = 0;
+        limit = current.length;
+        inflatedOffset += limit;
+        expectedOffset = chunk.lastEnd;
+        currentEnd = chunk.end;
+    }
+
+    /**
+     * Reads the next buffer of the member at expectedOffset, and once it is read, inflates the
+     * rest of its chunk.
+     */
+    private void stream() throws IOException {
+        if (streamed == null) {
+            streamed = new Member(expectedOffset, new Input());
+            if (!streamed.start()) {
+                throw new IOException("Invalid gzip member at offset " + expectedOffset);
+            }
+            memberOffsets.put(inflatedOffset, expectedOffset);
+        }
+        int n = streamed.inflate(streamBuffer);
+        if (n < 0) {
+            throw new IOException("Invalid gzip member at offset " + expectedOffset);
+        }
+        if (n > 0) {
+            current = streamBuffer;
+            pos = 0;
+            limit = n;
+            inflatedOffset += n;
+            return;
+        }
+        expectedOffset = streamed.end();
+        streamed.close();
+        streamed = null;
+        if (expectedOffset < currentEnd) {
+            use(inflateFrom(expectedOffset, currentEnd, new Input(), maxInflated));
+        }
+    }
+
+    private Chunk inflateChunk(long start, long end) throws IOException {
+        Input in = new Input();
+        for (long candidate = start; candidate < end; candidate++) {
+            if (in.byteAt(candidate) != 0x1f) {
+                continue;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long memberEnd = inflateMember(candidate, in, out, maxInflated);
+            if (memberEnd == TOO_LARGE) {
+                // the reader streams the member if it is the expected one
+                return new Chunk(end, candidate, candidate, new byte[0]);
+            } else if (memberEnd > 0) {
+                try {
+                    Chunk rest = inflateFrom(memberEnd, end, in, maxInflated - out.size());
+                    int restStart = out.size();
+                    out.write(rest.data, 0, rest.data.length);
+                    Chunk chunk = new Chunk(end, candidate, rest.lastEnd, out.toByteArray());
+                    chunk.members.add(candidate);
+                    chunk.starts.add(0);
+                    for (int i = 0; i < rest.members.size(); i++) {
+                        chunk.members.add(rest.members.getLong(i));
+                        chunk.starts.add(restStart + rest.starts.getLong(i));
+                    }
+                    return chunk;
+                } catch (IOException e) {
+                    // candidate was a false header, the reader redoes the chunk
+                    break;
+                }
+            }
+            if (start == 0) {
+                break;
+            }
+        }
+        return new Chunk(end, -1, -1, new byte[0]);
+    }
+
+    /**
+     * Inflates the members starting at offset, and following, until a member starts at or
+     * after end, or would make more than limit bytes.
+     */
+    private Chunk inflateFrom(long offset, long end, Input in, int limit) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LongArrayList members = new LongArrayList();
+        LongArrayList starts = new LongArrayList();
+        long memberStart = offset;
+        while (memberStart < end && memberStart < size) {
+            int start = out.size();
+            long memberEnd = inflateMember(memberStart, in, out, limit);
+            if (memberEnd == TOO_LARGE) {
+                break;
+            } else if (memberEnd < 0) {
+                throw new IOException("Invalid gzip member at offset " + memberStart);
+            }
+            members.add(memberStart);
+            starts.add(start);
+            memberStart = memberEnd;
+        }
+        Chunk chunk = new Chunk(end, offset, memberStart, out.toByteArray());
+        chunk.members.addAll(members);
+        chunk.starts.addAll(starts);
+        return chunk;
+    }
+
+    /**
+     * Inflates the gzip member at offset into out, as long as out holds at most limit bytes.
+     *
+     * @return the offset of the end of the member, -1 if there is no valid member at offset, or
+     * TOO_LARGE if the member would exceed limit, in which cases nothing is written to out
+     */
+    private long inflateMember(long offset, Input in, ByteArrayOutputStream out, int limit) throws IOException {
+        Member member = new Member(offset, in);
+        int mark = out.size();
+        byte[] buf = new byte[BUF_SIZE];
+        try {
+            if (!member.start()) {
+                return -1;
+            }
+            int n;
+            while ((n = member.inflate(buf)) > 0) {
+                if (out.size() + n > limit) {
+                    reset(out, mark);
+                    return TOO_LARGE;
+                }
+                out.write(buf, 0, n);
+            }
+            return n < 0 ? reset(out, mark) : member.end();
+        } finally {
+            member.close();
+        }
+    }
+
+    private static long reset(ByteArrayOutputStream out, int mark) {
+        if (out.size() != mark) {
+            byte[] kept = out.toByteArray();
+            out.reset();
+            out.write(kept, 0, mark);
+        }
+        return -1;
+    }
+
+    /**
+     * A gzip member, inflated a buffer at a time.
+     */
+    private class Member {
+        private final long offset;
+        private final Input in;
+        private final Inflater inflater = new Inflater(true);
+        private final CRC32 crc = new CRC32();
+        private long inflated = 0;
+        private long end = -1;
+
+        Member(long offset, Input in) {
+            this.offset = offset;
+            this.in = in;
+        }
+
+        /**
+         * Reads the header of the member.
+         *
+         * @return false if there is no gzip header at offset
+         */
+        boolean start() throws IOException {
+            if (in.byteAt(offset) != 0x1f || in.byteAt(offset + 1) != 0x8b || in.byteAt(offset + 2) != 8) {
+                return false;
+            }
+            int flags = in.byteAt(offset + 3);
+            if (flags < 0 || (flags & 0xe0) != 0) {
+                return false;
+            }
+            long p = offset + 10;
+            if ((flags & FEXTRA) != 0) {
+                int xlen = in.byteAt(p) | in.byteAt(p + 1) << 8;
+                if (xlen < 0) {
+                    return false;
+                }
+                p += 2 + xlen;
+            }
+            if ((flags & FNAME) != 0) {
+                while (in.byteAt(p++) > 0) {
+                }
+            }
+            if ((flags & FCOMMENT) != 0) {
+                while (in.byteAt(p++) > 0) {
+                }
+            }
+            if ((flags & FHCRC) != 0) {
+                p += 2;
+            }
+            return in.setInput(inflater, p);
+        }
+
+        /**
+         * Inflates the next bytes of the member.
+         *
+         * @return the number of bytes written to buf, 0 at the end of the member if its CRC and
+         * length are valid, or -1 if the member is invalid
+         */
+        int inflate(byte[] buf) throws IOException {
+            try {
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(buf);
+                    if (n > 0) {
+                        crc.update(buf, 0, n);
+                        inflated += n;
+                        return n;
+                    } else if (inflater.needsInput()) {
+                        if (!in.nextInput(inflater)) {
+                            return -1;
+                        }
+                    } else if (inflater.needsDictionary()) {
+                        return -1;
+                    }
+                }
+            } catch (DataFormatException e) {
+                return -1;
+            }
+            if (end < 0) {
+                long trailer = in.inputEnd() - inflater.getRemaining();
+                long expectedCrc = in.intAt(trailer);
+                long expectedSize = in.intAt(trailer + 4);
+                if (expectedCrc != crc.getValue() || expectedSize != (inflated & 0xffffffffL)) {
+                    return -1;
+                }
+                end = trailer + 8;
+            }
+            return 0;
+        }
+
+        /**
+         * @return the offset of the end of the member, once it is inflated
+         */
+        long end() {
+            return end;
+        }
+
+        void close() {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Positional reads in the file through a buffer, one per task.
+     */
+    private class Input {
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUF_SIZE);
+        private long bufferStart = -1;
+        private int bufferLength = 0;
+
+        private boolean load(long position) throws IOException {
+            if (position >= size) {
+                return false;
+            }
+            buffer.clear();
+            bufferStart = position;
+            bufferLength = 0;
+            while (buffer.hasRemaining() && position + bufferLength < size) {
+                int n = channel.read(buffer, position + bufferLength);
+                if (n < 0) {
+                    break;
+                }
+                bufferLength += n;
+            }
+            return bufferLength > 0;
+        }
+
+        /**
+         * @return the unsigned byte at position, or -1 after the end of the file
+         */
+        int byteAt(long position) throws IOException {
+            if (position < bufferStart || position >= bufferStart + bufferLength) {
+                if (!load(position)) {
+                    return -1;
+                }
+            }
+            return buffer.array()[(int) (position - bufferStart)] & 0xff;
+        }
+
+        /**
+         * @return the little-endian unsigned int at position, or -1 after the end of the file
+         */
+        long intAt(long position) throws IOException {
+            long v = 0;
+            for (int i = 3; i >= 0; i--) {
+                int b = byteAt(position + i);
+                if (b < 0) {
+                    return -1;
+                }
+                v = v << 8 | b;
+            }
+            return v;
+        }
+
+        boolean setInput(Inflater inflater, long position) throws IOException {
+            if (position < bufferStart || position >= bufferStart + bufferLength) {
+                if (!load(position)) {
+                    return false;
+                }
+            }
+            int off = (int) (position - bufferStart);
+            inflater.setInput(buffer.array(), off, bufferLength - off);
+            return true;
+        }
+
+        boolean nextInput(Inflater inflater) throws IOException {
+            return setInput(inflater, bufferStart + bufferLength);
+        }
+
+        /**
+         * @return the position following the last byte given to the inflater
+         */
+        long inputEnd() {
+            return bufferStart + bufferLength;
+        }
+    }
+}
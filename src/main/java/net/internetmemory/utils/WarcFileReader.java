@@ -0,0 +1,73 @@
+package net.internetmemory.utils;
+
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the records of a WARC file and gives the offset of each record in the file, i.e. the
+ * offset of its gzip member for a .warc.gz, also when the members are inflated by several
+ * threads (see {@link WarcReaderWrapper#INFLATE_THREADS}).
+ */
+public class WarcFileReader implements Closeable {
+    private final WarcReader reader;
+    private final ParallelGzipInputStream gzip;
+    private final long fileSize;
+    private final long start;
+
+    public WarcFileReader(String fileName) throws IOException {
+        this(fileName, 0);
+    }
+
+    /**
+     * @param start offset of the first record to read, e.g. from a {@link WarcIndex}
+     */
+    public WarcFileReader(String fileName, long start) throws IOException {
+        fileSize = new File(fileName).length();
+        if (WarcReaderWrapper.INFLATE_THREADS > 1 && fileName.endsWith(".gz")) {
+            this.start = 0;
+            gzip = new ParallelGzipInputStream(fileName, WarcReaderWrapper.INFLATE_THREADS,
+                    ParallelGzipInputStream.CHUNK_SIZE, start);
+            reader = WarcReaderFactory.getReaderUncompressed(gzip, WarcReaderWrapper.BUF_SIZE);
+        } else {
+            // the offsets of the reader are relative to the start
+            this.start = start;
+            gzip = null;
+            FileInputStream in = new FileInputStream(fileName);
+            in.getChannel().position(start);
+            reader = WarcReaderFactory.getReader(in, WarcReaderWrapper.BUF_SIZE);
+        }
+    }
+
+    /**
+     * @return the next record, or null at the end of the file
+     */
+    public WarcRecord getNextRecord() throws IOException {
+        return reader.getNextRecord();
+    }
+
+    /**
+     * Returns the offset of a record in the file. The offsets must be asked in the order of the
+     * records, before reading the next one.
+     */
+    public long getOffset(WarcRecord rec) {
+        return gzip != null ? gzip.memberOffset(rec.getStartOffset()) : start + rec.getStartOffset();
+    }
+
+    /**
+     * @return the size of the file, i.e. the end of the last record
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    @Override
+    public void close() {
+        reader.close();
+    }
+}
@@ -0,0 +1,175 @@
+package net.internetmemory.utils;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Index of the records of a WARC file (as in CDX files): the URL, type, record ID, offset and
+ * length in the file of each record, one record per line, separated by tabulations. For a
+ * .warc.gz the offset and the length are those of the gzip member, so a record can be read
+ * again without reading the file from the beginning (see {@link WarcRandomAccess}).
+ */
+public class WarcIndex {
+    private static final String NONE = "-";
+
+    /**
+     * One record of the index.
+     */
+    public static class Entry {
+        public final String url;
+        public final String type;
+        public final String recordId;
+        public final long offset;
+        public final long length;
+
+        public Entry(String url, String type, String recordId, long offset, long length) {
+            this.url = url;
+            this.type = type;
+            this.recordId = recordId;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public String toString() {
+            return orNone(url) + "\t" + orNone(type) + "\t" + orNone(recordId) + "\t" + offset + "\t" + length;
+        }
+
+        static Entry parse(String line) {
+            String[] fields = line.split("\t");
+            if (fields.length != 5) {
+                throw new IllegalArgumentException("Invalid index line: " + line);
+            }
+            return new Entry(orNull(fields[0]), orNull(fields[1]), orNull(fields[2]),
+                    Long.parseLong(fields[3]), Long.parseLong(fields[4]));
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final Map<String, Entry> byRecordId = new HashMap<>();
+    private final Map<String, List<Entry>> byUrl = new HashMap<>();
+
+    /**
+     * Loads an index file.
+     */
+    public static WarcIndex load(String fn) throws IOException {
+        WarcIndex index = new WarcIndex();
+        try (BufferedReader br = new BufferedReader(new FileReader(fn))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    index.add(Entry.parse(line));
+                }
+            }
+        }
+        return index;
+    }
+
+    private void add(Entry e) {
+        entries.add(e);
+        if (e.recordId != null) {
+            byRecordId.put(e.recordId, e);
+        }
+        if (e.url != null) {
+            byUrl.computeIfAbsent(e.url, k -> new ArrayList<>()).add(e);
+        }
+    }
+
+    /**
+     * @return the records in file order
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the record with the given WARC-Record-ID, or null
+     */
+    public Entry getByRecordId(String recordId) {
+        return byRecordId.get(recordId);
+    }
+
+    /**
+     * @return the records of the given URL in file order, of any type
+     */
+    public List<Entry> getByUrl(String url) {
+        return byUrl.getOrDefault(url, Collections.emptyList());
+    }
+
+    /**
+     * @return the first record of the given URL and type, or null
+     */
+    public Entry getByUrl(String url, String type) {
+        for (Entry e : getByUrl(url)) {
+            if (type.equals(e.type)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private static String orNone(String s) {
+        return s == null || s.isEmpty() ? NONE : s;
+    }
+
+    private static String orNull(String s) {
+        return s.equals(NONE) ? null : s;
+    }
+
+    /**
+     * Writes an index while the WARC file is read. The length of a record is known when the
+     * next one starts, so each line is written one record late.
+     */
+    public static class Writer implements Closeable {
+        private final PrintWriter out;
+        private String url;
+        private String type;
+        private String recordId;
+        private long offset = -1;
+
+        public Writer(String fn) throws IOException {
+            out = new PrintWriter(new BufferedWriter(new FileWriter(fn)));
+        }
+
+        /**
+         * Adds the record starting at the given offset.
+         */
+        public void add(String url, String type, String recordId, long offset) {
+            flush(offset);
+            this.url = url;
+            this.type = type;
+            this.recordId = recordId;
+            this.offset = offset;
+        }
+
+        /**
+         * Adds a record starting at the given offset, see {@link WarcFileReader#getOffset(org.jwat.warc.WarcRecord)}.
+         */
+        public void add(org.jwat.warc.WarcRecord rec, long offset) {
+            add(rec.header.warcTargetUriStr, rec.header.warcTypeStr, rec.header.warcRecordIdStr, offset);
+        }
+
+        private void flush(long end) {
+            if (offset >= 0) {
+                out.println(new Entry(url, type, recordId, offset, end - offset));
+            }
+        }
+
+        /**
+         * Writes the last record, which ends at the given offset (usually the size of the file).
+         */
+        public void close(long end) throws IOException {
+            flush(end);
+            offset = -1;
+            close();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            if (out.checkError()) {
+                throw new IOException("Could not write the index");
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package net.internetmemory.utils;
+
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads single records of a WARC file at the offsets given by a {@link WarcIndex}, without
+ * reading the records before them.
+ */
+public class WarcRandomAccess implements Closeable {
+    private final RandomAccessFile file;
+    private final WarcIndex index;
+
+    public WarcRandomAccess(String fileName, WarcIndex index) throws IOException {
+        this.file = new RandomAccessFile(fileName, "r");
+        this.index = index;
+    }
+
+    public WarcIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Reads the record of an index entry, its content is in memory.
+     */
+    public WarcRecord read(WarcIndex.Entry e) throws IOException {
+        byte[] data = new byte[(int) e.length];
+        synchronized (file) {
+            file.seek(e.offset);
+            file.readFully(data);
+        }
+        // the reader detects whether the record is a gzip member
+        WarcReader reader = WarcReaderFactory.getReader(new ByteArrayInputStream(data));
+        org.jwat.warc.WarcRecord rec = reader.getNextRecord();
+        if (rec == null) {
+            throw new IOException("No WARC record at offset " + e.offset);
+        }
+        return WarcReaderWrapper.parseWarcRecord(rec);
+    }
+
+    /**
+     * @return the record with the given WARC-Record-ID, or null if it is not in the index
+     */
+    public WarcRecord getByRecordId(String recordId) throws IOException {
+        WarcIndex.Entry e = index.getByRecordId(recordId);
+        return e == null ? null : read(e);
+    }
+
+    /**
+     * @return the first record of the given URL and type, or null if it is not in the index
+     */
+    public WarcRecord getByUrl(String url, String type) throws IOException {
+        WarcIndex.Entry e = index.getByUrl(url, type);
+        return e == null ? null : read(e);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
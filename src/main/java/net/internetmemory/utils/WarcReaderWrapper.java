@@ -12,10 +12,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 public class WarcReaderWrapper {
     public static int BUF_SIZE = 8 * 1024;
 
+    /**
+     * Number of threads inflating the members of a .warc.gz file, 1 to inflate it in the
+     * reading thread.
+     */
+    public static int INFLATE_THREADS = 1;
+
     public static final Logger LOG = LoggerFactory.getLogger(WarcReaderWrapper.class);
 
     public static MimeDetection mimeDetection = new MimeDetection();
@@ -80,10 +87,29 @@ public class WarcReaderWrapper {
     }
 
     public static org.jwat.warc.WarcReader getReaderFromFile(String fName) throws IOException {
+        if (INFLATE_THREADS > 1 && fName.endsWith(".gz")) {
+            return WarcReaderFactory.getReaderUncompressed(
+                    new ParallelGzipInputStream(fName, INFLATE_THREADS), BUF_SIZE);
+        }
         WarcReader reader = WarcReaderFactory.getReader(new FileInputStream(fName), BUF_SIZE);
         return reader;
     }
 
+    /**
+     * Reads the content of the record, HTTP header included. A truncated content is padded
+     * with zeros.
+     */
+    public static byte[] readContent(WarcRecord record) throws IOException {
+        byte[] content = new byte[(int) record.getContentLength()];
+        InputStream is = record.getContent();
+        int off = 0;
+        int n;
+        while (off < content.length && (n = is.read(content, off, content.length - off)) > 0) {
+            off += n;
+        }
+        return content;
+    }
+
     public static boolean isARes(WarcRecord record) {
         return record != null
                 && (record.getWarcRecordType().equals(WarcRecord.RESPONSE_TYPE)
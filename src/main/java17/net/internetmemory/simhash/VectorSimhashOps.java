@@ -0,0 +1,102 @@
+package net.internetmemory.simhash;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link SimhashOps} on the JDK Vector API (incubator module of Java 17). Built by the java17
+ * profile only, {@link SimhashOps#get()} falls back to the scalar implementation without it.
+ */
+class VectorSimhashOps extends SimhashOps {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+    // as many ints as there are longs in SPECIES
+    private static final VectorSpecies<Integer> INT_SPECIES =
+            VectorSpecies.of(int.class, VectorShape.forBitSize(32 * LANES));
+    private static final long[] BITS = new long[64];
+
+    static {
+        for (int i = 0; i < 64; i++) {
+            BITS[i] = i;
+        }
+    }
+
+    @Override
+    public String name() {
+        return "vector " + SPECIES.vectorBitSize() + " bits";
+    }
+
+    /**
+     * Counts LANES bit positions at a time: each hash is broadcast, shifted by the positions of
+     * the lanes and masked, the counters stay in a vector for all the hashes.
+     */
+    @Override
+    public void accumulate(long[] hashes, int n, int[] ones, int offset) {
+        for (int bit = 0; bit < 64; bit += LANES) {
+            LongVector shifts = LongVector.fromArray(SPECIES, BITS, bit);
+            LongVector counts = LongVector.zero(SPECIES);
+            for (int i = 0; i < n; i++) {
+                counts = counts.add(LongVector.broadcast(SPECIES, hashes[i]).lanewise(VectorOperators.LSHR, shifts).and(1L));
+            }
+            for (int lane = 0; lane < LANES; lane++) {
+                ones[offset + bit + lane] += (int) counts.lane(lane);
+            }
+        }
+    }
+
+    /**
+     * XORs LANES words of the block at a time with the query repeated over the lanes and counts
+     * their bits (there is no vector bit count in Java 17, the count is the usual SWAR one).
+     * The fingerprints which do not fill the lanes are compared by the scalar loop.
+     */
+    @Override
+    public void distances(long[] query, int queryOffset, int words, long[] block, int nrFingerprints,
+                          int[] distances) {
+        int f = 0;
+        if (words == 1) {
+            // the counts are narrowed to ints and stored directly
+            LongVector q = LongVector.broadcast(SPECIES, query[queryOffset]);
+            for (; f + LANES <= nrFingerprints; f += LANES) {
+                ((IntVector) bitCount(LongVector.fromArray(SPECIES, block, f).lanewise(VectorOperators.XOR, q))
+                        .convertShape(VectorOperators.L2I, INT_SPECIES, 0))
+                        .intoArray(distances, f);
+            }
+        } else if (LANES % words == 0) {
+            long[] repeated = new long[LANES];
+            for (int lane = 0; lane < LANES; lane++) {
+                repeated[lane] = query[queryOffset + lane % words];
+            }
+            LongVector q = LongVector.fromArray(SPECIES, repeated, 0);
+            long[] counts = new long[LANES];
+            int perVector = LANES / words;
+            for (; f + perVector <= nrFingerprints; f += perVector) {
+                bitCount(LongVector.fromArray(SPECIES, block, f * words).lanewise(VectorOperators.XOR, q))
+                        .intoArray(counts, 0);
+                for (int i = 0; i < perVector; i++) {
+                    int d = 0;
+                    for (int w = 0; w < words; w++) {
+                        d += (int) counts[i * words + w];
+                    }
+                    distances[f + i] = d;
+                }
+            }
+        }
+        for (; f < nrFingerprints; f++) {
+            int d = 0;
+            for (int w = 0; w < words; w++) {
+                d += Long.bitCount(query[queryOffset + w] ^ block[f * words + w]);
+            }
+            distances[f] = d;
+        }
+    }
+
+    private static LongVector bitCount(LongVector x) {
+        x = x.sub(x.lanewise(VectorOperators.LSHR, 1).and(0x5555555555555555L));
+        x = x.and(0x3333333333333333L).add(x.lanewise(VectorOperators.LSHR, 2).and(0x3333333333333333L));
+        x = x.add(x.lanewise(VectorOperators.LSHR, 4)).and(0x0f0f0f0f0f0f0f0fL);
+        return x.mul(0x0101010101010101L).lanewise(VectorOperators.LSHR, 56);
+    }
+}
@@ -0,0 +1,169 @@
+package net.internetmemory.crawlquality;
+
+import junit.framework.TestCase;
+import net.internetmemory.simhash.SimhashFingerprint;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+public class FingerprintIndexFileTest extends TestCase {
+    private static final SimhashFingerprint.Algorithm ALGORITHM = SimhashFingerprint.Algorithm.PLAIN_TEXT_SHINGLE3_V3_128;
+
+    private File file;
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("fingerprints", ".fpx");
+        // append creates the index
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() {
+        file.delete();
+    }
+
+    public void testAppendAndReopen() throws IOException {
+        Random random = new Random(5);
+        List<URLInfo> first = crawl(random, "http://a.example.org/", 400, null);
+        List<URLInfo> second = crawl(random, "http://b.example.org/", 300, first);
+        FingerprintIndexFile.append(file.getPath(), "first", first, 3);
+
+        FingerprintIndexFile index = FingerprintIndexFile.open(file.getPath());
+        assertEquals(Collections.singletonList("first"), index.getCrawls());
+        assertEquals(ALGORITHM, index.getAlgorithm());
+        assertEquals(3, index.getMaxDistance());
+        assertEquals(withSimhash(first).size(), index.size());
+
+        // the distance of the index is kept
+        FingerprintIndexFile.append(file.getPath(), "second", second, 5);
+        index = FingerprintIndexFile.open(file.getPath());
+        assertEquals(Arrays.asList("first", "second"), index.getCrawls());
+        assertEquals(3, index.getMaxDistance());
+        assertEquals(withSimhash(first).size() + withSimhash(second).size(), index.size());
+        checkQueries(index, random, first, second);
+    }
+
+    public void testAppendAfterFailedAppend() throws IOException {
+        Random random = new Random(6);
+        List<URLInfo> first = crawl(random, "http://a.example.org/", 200, null);
+        List<URLInfo> second = crawl(random, "http://b.example.org/", 200, first);
+        FingerprintIndexFile.append(file.getPath(), "first", first, 3);
+        // the bytes of an append interrupted before its segment was counted
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            byte[] garbage = new byte[5000];
+            random.nextBytes(garbage);
+            out.write(garbage);
+        }
+        FingerprintIndexFile.append(file.getPath(), "second", second, 3);
+
+        FingerprintIndexFile index = FingerprintIndexFile.open(file.getPath());
+        assertEquals(Arrays.asList("first", "second"), index.getCrawls());
+        checkQueries(index, random, first, second);
+    }
+
+    public void testAppendOtherAlgorithm() throws IOException {
+        Random random = new Random(7);
+        FingerprintIndexFile.append(file.getPath(), "first", crawl(random, "http://a.example.org/", 10, null), 3);
+        List<URLInfo> other = new ArrayList<>();
+        other.add(urlInfo("http://c.example.org/",
+                new SimhashFingerprint(SimhashFingerprint.Algorithm.PLAIN_TEXT_SHINGLE3_V3, new long[]{1L})));
+        try {
+            FingerprintIndexFile.append(file.getPath(), "other", other, 3);
+            fail("The index has 128-bit simhashes");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1, FingerprintIndexFile.open(file.getPath()).getCrawls().size());
+    }
+
+    /**
+     * Compares the queries and the nearest pages to a scan of the crawls.
+     */
+    private static void checkQueries(FingerprintIndexFile index, Random random, List<URLInfo> first,
+                                     List<URLInfo> second) {
+        List<List<URLInfo>> crawls = Arrays.asList(withSimhash(first), withSimhash(second));
+        List<String> names = Arrays.asList("first", "second");
+        for (int k = 0; k < 200; k++) {
+            List<URLInfo> crawl = crawls.get(random.nextInt(2));
+            SimhashFingerprint query = near(random, crawl.get(random.nextInt(crawl.size())).simhash, 6);
+            for (int radius = 0; radius <= index.getMaxDistance(); radius++) {
+                List<String> expected = new ArrayList<>();
+                String nearest = null;
+                int nearestDistance = Integer.MAX_VALUE;
+                for (int c = 0; c < crawls.size(); c++) {
+                    List<URLInfo> sorted = crawls.get(c).stream()
+                            .sorted(Comparator.comparing(u -> u.url))
+                            .collect(Collectors.toList());
+                    for (URLInfo ui : sorted) {
+                        int d = ui.simhash.distance(query);
+                        if (d <= radius) {
+                            expected.add(names.get(c) + "\t" + ui.url + "\t" + d);
+                            if (d < nearestDistance) {
+                                nearest = names.get(c) + "\t" + ui.url + "\t" + d;
+                                nearestDistance = d;
+                            }
+                        }
+                    }
+                }
+                List<String> found = new ArrayList<>();
+                index.query(query, radius, m -> found.add(m.crawl + "\t" + m.url + "\t" + m.distance));
+                Collections.sort(expected);
+                Collections.sort(found);
+                assertEquals("radius " + radius, expected, found);
+                FingerprintIndexFile.Match m = index.nearest(query, radius);
+                assertEquals("radius " + radius, nearest, m == null ? null : m.crawl + "\t" + m.url + "\t" + m.distance);
+            }
+        }
+    }
+
+    /**
+     * @return n pages, about a tenth without a page simhash, the others random or close to a page
+     * of the previous crawl or of this one
+     */
+    private static List<URLInfo> crawl(Random random, String prefix, int n, List<URLInfo> previous) {
+        List<URLInfo> res = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            SimhashFingerprint simhash;
+            if (random.nextInt(10) == 0) {
+                simhash = null;
+            } else if (random.nextInt(3) == 0) {
+                simhash = new SimhashFingerprint(ALGORITHM, new long[]{random.nextLong(), random.nextLong()});
+            } else {
+                List<URLInfo> from = previous != null && random.nextBoolean() ? previous : res;
+                List<URLInfo> candidates = withSimhash(from);
+                simhash = candidates.isEmpty()
+                        ? new SimhashFingerprint(ALGORITHM, new long[]{random.nextLong(), random.nextLong()})
+                        : near(random, candidates.get(random.nextInt(candidates.size())).simhash, 5);
+            }
+            res.add(urlInfo(prefix + "p" + i + ".html", simhash));
+        }
+        return res;
+    }
+
+    private static List<URLInfo> withSimhash(List<URLInfo> uis) {
+        return uis.stream().filter(u -> u.simhash != null).collect(Collectors.toList());
+    }
+
+    private static SimhashFingerprint near(Random random, SimhashFingerprint fp, int maxFlips) {
+        long[] simhash = fp.simhash().clone();
+        int flips = random.nextInt(maxFlips + 1);
+        for (int k = 0; k < flips; k++) {
+            int bit = random.nextInt(64 * simhash.length);
+            simhash[bit >>> 6] ^= 1L << (bit & 63);
+        }
+        return new SimhashFingerprint(fp.getType(), simhash);
+    }
+
+    private static URLInfo urlInfo(String url, SimhashFingerprint simhash) {
+        return new URLInfo(url, 200, "text/html", null, null, simhash, null, null);
+    }
+}
@@ -0,0 +1,46 @@
+package net.internetmemory.simhash;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class HammingIndexTest extends TestCase {
+    private static final int N = 2000;
+
+    public void testQueriesMatchScan() {
+        Random random = new Random(1);
+        for (int words : new int[]{1, 2, 4}) {
+            for (int maxDistance : new int[]{0, 1, 3, 6}) {
+                long[] fingerprints = RandomFingerprints.generate(random, words, N, 2 * maxDistance + 2);
+                HammingIndex index = new HammingIndex(fingerprints, words, N, maxDistance);
+                for (int i = 0; i < N; i += 7) {
+                    List<Integer> found = new ArrayList<>();
+                    index.query(i, found::add);
+                    Collections.sort(found);
+                    assertEquals(words + " words, distance " + maxDistance + ", fingerprint " + i,
+                            RandomFingerprints.scan(fingerprints, words, N, fingerprints, i * words, maxDistance),
+                            found);
+                }
+                for (int k = 0; k < 200; k++) {
+                    long[] query = RandomFingerprints.near(random, fingerprints, words, random.nextInt(N),
+                            2 * maxDistance + 2);
+                    List<Integer> found = new ArrayList<>();
+                    index.query(query, 0, found::add);
+                    Collections.sort(found);
+                    assertEquals(words + " words, distance " + maxDistance,
+                            RandomFingerprints.scan(fingerprints, words, N, query, 0, maxDistance), found);
+                }
+            }
+        }
+    }
+
+    public void testDistance() {
+        long[] fingerprints = {0L, 0L, -1L, 1L};
+        HammingIndex index = new HammingIndex(fingerprints, 2, 2, 3);
+        assertEquals(65, index.distance(0, 1));
+        assertEquals(0, index.distance(1, 1));
+    }
+}
@@ -0,0 +1,71 @@
+package net.internetmemory.simhash;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class MappedHammingIndexTest extends TestCase {
+    private static final int N = 2000;
+
+    public void testQueriesMatchScan() throws IOException {
+        Random random = new Random(4);
+        for (int words : new int[]{1, 2, 4}) {
+            for (int maxDistance : new int[]{0, 2, 3, 5}) {
+                long[] fingerprints = RandomFingerprints.generate(random, words, N, 2 * maxDistance + 2);
+                MappedHammingIndex index = mapped(new HammingIndex(fingerprints, words, N, maxDistance));
+                assertEquals(N, index.size());
+                assertEquals(maxDistance, index.getMaxDistance());
+                for (int k = 0; k < 300; k++) {
+                    long[] query = RandomFingerprints.near(random, fingerprints, words, random.nextInt(N),
+                            2 * maxDistance + 2);
+                    for (int radius = 0; radius <= maxDistance; radius++) {
+                        List<Integer> found = new ArrayList<>();
+                        index.query(query, 0, radius, found::add);
+                        Collections.sort(found);
+                        assertEquals(words + " words, distance " + maxDistance + ", radius " + radius,
+                                RandomFingerprints.scan(fingerprints, words, N, query, 0, radius), found);
+                    }
+                }
+            }
+        }
+    }
+
+    public void testRadiusLargerThanIndex() throws IOException {
+        MappedHammingIndex index = mapped(new HammingIndex(new long[]{0L}, 1, 1, 2));
+        try {
+            index.query(new long[]{0L}, 0, 3, i -> { });
+            fail("The index answers distances up to 2");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * @return the index read back from the bytes written by {@link MappedHammingIndex#write}
+     */
+    private static MappedHammingIndex mapped(HammingIndex index) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            MappedHammingIndex.write(index, out);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        int words = index.getWords();
+        int n = index.size();
+        buffer.limit(8 * n * words);
+        LongBuffer fingerprints = buffer.slice().asLongBuffer();
+        LongBuffer[] tables = new LongBuffer[index.nrTables()];
+        for (int b = 0; b < tables.length; b++) {
+            buffer.limit(8 * n * (words + b + 1)).position(8 * n * (words + b));
+            tables[b] = buffer.slice().asLongBuffer();
+        }
+        return new MappedHammingIndex(fingerprints, tables, words, n);
+    }
+}
@@ -0,0 +1,61 @@
+package net.internetmemory.simhash;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class MultiIndexHashTest extends TestCase {
+    private static final int N = 2000;
+
+    public void testQueriesMatchScan() {
+        Random random = new Random(2);
+        for (int words : new int[]{1, 2, 4}) {
+            long[] fingerprints = RandomFingerprints.generate(random, words, N, 24);
+            MultiIndexHash index = new MultiIndexHash(fingerprints, words, N);
+            for (int radius : new int[]{0, 1, 3, 7, 12, 20}) {
+                for (int i = 0; i < N; i += 13) {
+                    List<Integer> found = new ArrayList<>();
+                    index.query(i, radius, found::add);
+                    Collections.sort(found);
+                    assertEquals(words + " words, radius " + radius + ", fingerprint " + i,
+                            RandomFingerprints.scan(fingerprints, words, N, fingerprints, i * words, radius), found);
+                }
+                for (int k = 0; k < 100; k++) {
+                    long[] query = RandomFingerprints.near(random, fingerprints, words, random.nextInt(N), 24);
+                    List<Integer> found = new ArrayList<>();
+                    index.query(query, 0, radius, found::add);
+                    Collections.sort(found);
+                    assertEquals(words + " words, radius " + radius,
+                            RandomFingerprints.scan(fingerprints, words, N, query, 0, radius), found);
+                }
+            }
+        }
+    }
+
+    public void testSubstringsOfAnyLength() {
+        Random random = new Random(3);
+        long[] fingerprints = RandomFingerprints.generate(random, 1, N, 12);
+        for (int nrSubstrings : new int[]{2, 3, 5, 9, 64}) {
+            MultiIndexHash index = new MultiIndexHash(fingerprints, 1, N, nrSubstrings);
+            for (int i = 0; i < N; i += 31) {
+                List<Integer> found = new ArrayList<>();
+                index.query(i, 6, found::add);
+                Collections.sort(found);
+                assertEquals(nrSubstrings + " substrings, fingerprint " + i,
+                        RandomFingerprints.scan(fingerprints, 1, N, fingerprints, i, 6), found);
+            }
+        }
+    }
+
+    public void testTooFewSubstrings() {
+        try {
+            new MultiIndexHash(new long[2], 2, 1, 3);
+            fail("128 bits need at least 4 substrings of 32 bits");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package net.internetmemory.simhash;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random fingerprints for the tests of the indexes: some are random, the others are copies of a
+ * previous one with a few bits flipped, so the queries find neighbours at every distance.
+ */
+final class RandomFingerprints {
+    private RandomFingerprints() {
+    }
+
+    /**
+     * @return n fingerprints of words longs, one after the other
+     */
+    static long[] generate(Random random, int words, int n, int maxFlips) {
+        long[] fingerprints = new long[n * words];
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || random.nextInt(4) == 0) {
+                for (int w = 0; w < words; w++) {
+                    fingerprints[i * words + w] = random.nextLong();
+                }
+            } else {
+                System.arraycopy(fingerprints, random.nextInt(i) * words, fingerprints, i * words, words);
+                flip(random, fingerprints, i * words, words, random.nextInt(maxFlips + 1));
+            }
+        }
+        return fingerprints;
+    }
+
+    /**
+     * @return a copy of fingerprint i with up to maxFlips bits flipped
+     */
+    static long[] near(Random random, long[] fingerprints, int words, int i, int maxFlips) {
+        long[] query = new long[words];
+        System.arraycopy(fingerprints, i * words, query, 0, words);
+        flip(random, query, 0, words, random.nextInt(maxFlips + 1));
+        return query;
+    }
+
+    /**
+     * @return the numbers of the fingerprints at a distance of at most radius of the query, in
+     * increasing order
+     */
+    static List<Integer> scan(long[] fingerprints, int words, int n, long[] query, int queryOffset, int radius) {
+        List<Integer> res = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            int d = 0;
+            for (int w = 0; w < words; w++) {
+                d += Long.bitCount(query[queryOffset + w] ^ fingerprints[i * words + w]);
+            }
+            if (d <= radius) {
+                res.add(i);
+            }
+        }
+        return res;
+    }
+
+    private static void flip(Random random, long[] fp, int offset, int words, int nrBits) {
+        for (int k = 0; k < nrBits; k++) {
+            int bit = random.nextInt(64 * words);
+            fp[offset + (bit >>> 6)] ^= 1L << (bit & 63);
+        }
+    }
+}